@@ -0,0 +1,126 @@
+package com.cxf.benchmark;
+
+import com.cxf.nettyserver.EchoServer;
+import com.cxf.nio.PlainNioServer;
+import com.cxf.oio.PlainOioServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Created by cxf on 2019/1/9.
+ */
+
+/**
+ * 在回环地址上以后台线程启动被测服务器。
+ *
+ * 各个服务器的serve()/start()都会一直阻塞，所以放到单独的线程里跑：
+ *   oio         ---> PlainOioServer，每个连接一个线程，读到什么写回什么
+ *   oio-pool    ---> PlainOioServer的线程池模式，-DpoolSize/-DqueueSize，连接数超过poolSize+queueSize会被拒绝，
+ *                    长连接数超过poolSize时多出来的连接得不到服务
+ *   oio-virtual ---> PlainOioServer的虚拟线程模式，只能在JDK 21+上运行
+ *   nio         ---> PlainNioServer，一个acceptor加cpu数量个worker Selector，读到什么写回什么
+ *   netty       ---> nettyserver.EchoServer，keepAlive为true时用流水线模式，否则是回一次就关闭连接的模式；
+ *                    都不打印收到的消息，和oio/nio一样只做回写（和关闭连接）
+ *
+ * oio-pool和oio-virtual不在默认的@Param里，需要时用 -p server=oio-pool,oio-virtual 指定。
+ */
+final class BenchServers {
+
+    static final String HOST = "127.0.0.1";
+
+    private BenchServers() {
+    }
+
+    static Thread start(final String server, final int port, final boolean keepAlive) throws Exception {
+        Runnable serve;
+        if (server.startsWith("oio")) {
+            final PlainOioServer oio = newOioServer(server);
+            serve = new Runnable() {
+                public void run() {
+                    try {
+                        oio.serve(port);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        } else if ("nio".equals(server)) {
+            serve = new Runnable() {
+                public void run() {
+                    try {
+                        new PlainNioServer().serve(port);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        } else if ("netty".equals(server)) {
+            serve = new Runnable() {
+                public void run() {
+                    try {
+                        new EchoServer(port, 1, keepAlive ? 16 : 0, true).start();
+                    } catch (InterruptedException e) {
+                        // stop()
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        } else {
+            throw new IllegalArgumentException("unknown server: " + server);
+        }
+        Thread thread = new Thread(serve, server + "-server");
+        //PlainOioServer/PlainNioServer没有停止的入口，设成守护线程，它们创建的线程也会继承守护属性
+        thread.setDaemon(true);
+        thread.start();
+        awaitListening(port);
+        return thread;
+    }
+
+    private static PlainOioServer newOioServer(String server) {
+        if ("oio".equals(server)) {
+            return new PlainOioServer();
+        } else if ("oio-pool".equals(server)) {
+            return new PlainOioServer(PlainOioServer.Mode.POOL,
+                    Integer.getInteger("poolSize", 200), Integer.getInteger("queueSize", 1024));
+        } else if ("oio-virtual".equals(server)) {
+            return new PlainOioServer(PlainOioServer.Mode.VIRTUAL, 0, 0);
+        }
+        throw new IllegalArgumentException("unknown server: " + server);
+    }
+
+    /**
+     * EchoServer阻塞在closeFuture().sync()上，中断它会走到finally里关闭EventLoopGroup；
+     * PlainOioServer/PlainNioServer没有关闭的入口，随fork出来的JVM一起退出
+     */
+    static void stop(Thread thread) throws InterruptedException {
+        thread.interrupt();
+        thread.join(5000);
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        for (;;) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.cxf.benchmark;
+
+import com.cxf.transport.Transports;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by cxf on 2019/1/9.
+ */
+
+/**
+ * 短连接：每次调用同时发起clients个连接，每个连接发1个字节、等回显、然后关闭。
+ * 附加的connections计数器就是每秒完成的连接数，failures是连接失败或者没等到回显就断开的数量。
+ *
+ * 客户端关闭时设置SO_LINGER=0直接发RST，否则客户端这边会堆满TIME_WAIT，很快就把本地端口用完了。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ConnectBenchmark {
+
+    private static final ByteBuf REQUEST = Unpooled.unreleasableBuffer(Unpooled.directBuffer(1).writeByte(1));
+
+    @Param({"oio", "nio", "netty"})
+    public String server;
+
+    @Param({"1", "100", "10000"})
+    public int clients;
+
+    private Thread serverThread;
+    private EventLoopGroup group;
+    private Bootstrap bootstrap;
+    private int port;
+
+    private final AtomicLong failures = new AtomicLong();
+    private volatile CountDownLatch latch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        port = BenchServers.freePort();
+        serverThread = BenchServers.start(server, port, false);
+
+        group = Transports.newEventLoopGroup();
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(Transports.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_LINGER, 0)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new ConnectClientHandler(latch));
+                    }
+                });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        BenchServers.stop(serverThread);
+    }
+
+    @Benchmark
+    public void connect(Counters counters) throws InterruptedException {
+        latch = new CountDownLatch(clients);
+        failures.set(0);
+        for (int i = 0; i < clients; i++) {
+            bootstrap.connect(BenchServers.HOST, port).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (future.isSuccess()) {
+                        future.channel().writeAndFlush(REQUEST.duplicate(), future.channel().voidPromise());
+                    } else {
+                        //连接失败时channelInactive不会被触发，在这里计数
+                        ConnectClientHandler handler = future.channel().pipeline().get(ConnectClientHandler.class);
+                        if (handler != null) {
+                            handler.done(false);
+                        } else {
+                            failures.incrementAndGet();
+                            latch.countDown();
+                        }
+                    }
+                }
+            });
+        }
+        if (!latch.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(latch.getCount() + " of " + clients + " connections did not finish");
+        }
+        long failed = failures.get();
+        counters.connections += clients - failed;
+        counters.failures += failed;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long connections;
+        public long failures;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            connections = 0;
+            failures = 0;
+        }
+    }
+
+    /**
+     * 每个连接一个实例，收到回显、连接断开、连接失败三者中最先发生的那个会结束这个连接
+     */
+    final class ConnectClientHandler extends ChannelInboundHandlerAdapter {
+
+        private final CountDownLatch latch;
+        private boolean done;
+
+        ConnectClientHandler(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        void done(boolean success) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            latch.countDown();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            done(true);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            done(false);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.cxf.benchmark;
+
+import com.cxf.transport.Transports;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by cxf on 2019/1/9.
+ */
+
+/**
+ * 长连接请求/响应：预先建立clients个连接，每次调用在每个连接上发一条size字节的消息，等全部回显回来。
+ *
+ *   roundTrip  ---> SampleTime模式，给出p50/p99/p999；clients=1时就是单条消息的往返延迟，
+ *                   clients>1时是这一轮所有连接都收到回显所用的时间
+ *   throughput ---> 每秒轮数，附加的messages计数器是每秒回显的消息数
+ *
+ * 客户端用Netty实现(和服务端共用Transports)，这样10000个并发连接也只需要几个线程。
+ * 10000个连接时注意ulimit -n。
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class EchoBenchmark {
+
+    @Param({"oio", "nio", "netty"})
+    public String server;
+
+    @Param({"1", "100", "10000"})
+    public int clients;
+
+    @Param({"64"})
+    public int size;
+
+    private Thread serverThread;
+    private EventLoopGroup group;
+    private Channel[] channels;
+    private EchoClientHandler[] handlers;
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = BenchServers.freePort();
+        serverThread = BenchServers.start(server, port, true);
+        payload = Unpooled.unreleasableBuffer(Unpooled.directBuffer(size).writeZero(size));
+
+        group = Transports.newEventLoopGroup();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(Transports.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new EchoClientHandler());
+                    }
+                });
+        channels = new Channel[clients];
+        handlers = new EchoClientHandler[clients];
+        for (int i = 0; i < clients; i++) {
+            channels[i] = bootstrap.connect(BenchServers.HOST, port).sync().channel();
+            handlers[i] = channels[i].pipeline().get(EchoClientHandler.class);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Channel channel : channels) {
+            if (channel != null) {
+                channel.close().syncUninterruptibly();
+            }
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        BenchServers.stop(serverThread);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        round();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Counters counters) throws InterruptedException {
+        round();
+        counters.messages += clients;
+    }
+
+    private void round() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            handlers[i].expect(size, latch);
+            channels[i].writeAndFlush(payload.duplicate(), channels[i].voidPromise());
+        }
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(latch.getCount() + " of " + clients + " echoes not received");
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    /**
+     * 回显可能被拆成多次读到，按字节数累计，收够本轮发出去的字节数才countDown
+     */
+    static final class EchoClientHandler extends ChannelInboundHandlerAdapter {
+
+        //只在EventLoop线程上修改
+        private long received;
+
+        //只由压测线程修改，在writeAndFlush之前写入，EventLoop执行写任务时一定能看到
+        private volatile long target;
+        private volatile CountDownLatch latch;
+
+        void expect(int bytes, CountDownLatch latch) {
+            this.latch = latch;
+            this.target += bytes;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            long before = received;
+            received += buf.readableBytes();
+            buf.release();
+            long t = target;
+            if (before < t && received >= t) {
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
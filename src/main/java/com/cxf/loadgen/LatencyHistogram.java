@@ -0,0 +1,112 @@
+package com.cxf.loadgen;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by cxf on 2019/1/10.
+ */
+
+/**
+ * HdrHistogram风格的对数-线性直方图：
+ *   小于2^SUB_BUCKET_BITS的值每个值一个桶，之后每翻一倍分成2^(SUB_BUCKET_BITS-1)个等宽的桶，
+ *   所以任何值的相对误差都不超过 1/2^(SUB_BUCKET_BITS-1)（这里是1/128，不到1%），
+ *   而覆盖0到Long.MAX_VALUE只需要几千个桶。
+ *
+ * 多个EventLoop线程可以同时record()，计数用AtomicLongArray；
+ * snapshotAndReset()给定时打印用，读出当前计数并清零，得到的是这个时间段内的直方图。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    private LatencyHistogram(long[] snapshot) {
+        counts = new AtomicLongArray(snapshot);
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value < 0 ? 0 : value));
+    }
+
+    public LatencyHistogram snapshotAndReset() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                snapshot[i] = counts.getAndSet(i, 0);
+            }
+        }
+        return new LatencyHistogram(snapshot);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param percentile 0到100，比如99.9
+     * @return 至少有percentile%的记录不超过的值（取所在桶的上界）
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return max();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        //保留最高的SUB_BUCKET_BITS位，shift越大桶越宽
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_HALF + (int) (value >>> shift) - SUB_BUCKET_HALF;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long mantissa = index - shift * SUB_BUCKET_HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,124 @@
+package com.cxf.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Created by cxf on 2019/1/10.
+ */
+
+/**
+ * 压测客户端每个连接一个实例。
+ *
+ * 写出去的是Request（只带一个计划发送时间），在EventLoop线程上把时间戳放进本连接的等待队列再写出payload；
+ * 收到响应时从队列头取出时间戳计算延迟，所以同一个连接上可以有多个在途请求（服务端按顺序响应）。
+ *
+ * 响应的判定：
+ *   echo  ---> 服务端原样写回，按字节数累计，每收满一个payload的长度算完成一个请求
+ *   reply ---> 服务端的响应没有分帧（比如HelloWorldServer），每次channelRead算完成一个请求，
+ *              只有每个连接同时只有一个在途请求时才准确
+ */
+public class LoadClientHandler extends ChannelDuplexHandler {
+
+    /**
+     * 计划发送时间，开环模式下就是按速率排好的时间点，闭环模式下是实际发送时间
+     */
+    public static final class Request {
+        final long intendedNanos;
+
+        public Request(long intendedNanos) {
+            this.intendedNanos = intendedNanos;
+        }
+    }
+
+    /**
+     * 闭环模式下收到响应时回调，用来在同一个连接上立刻发下一个请求
+     */
+    public interface CompletionListener {
+        void completed(ChannelHandlerContext ctx);
+    }
+
+    private final ByteBuf payload;
+    private final boolean echo;
+    private final LatencyHistogram histogram;
+    private final CompletionListener listener;
+
+    //等待响应的请求的发送时间，环形数组，只在EventLoop线程上访问
+    private long[] pending = new long[16];
+    private int head;
+    private int size;
+
+    //echo模式下当前请求已经收到的字节数
+    private int received;
+
+    public LoadClientHandler(ByteBuf payload, boolean echo, LatencyHistogram histogram, CompletionListener listener) {
+        this.payload = payload;
+        this.echo = echo;
+        this.histogram = histogram;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof Request) {
+            push(((Request) msg).intendedNanos);
+            ctx.write(payload.duplicate(), promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            if (!echo) {
+                complete(ctx);
+                return;
+            }
+            int readable = ((ByteBuf) msg).readableBytes();
+            int length = payload.readableBytes();
+            received += readable;
+            while (received >= length && size > 0) {
+                received -= length;
+                complete(ctx);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+
+    private void complete(ChannelHandlerContext ctx) {
+        if (size == 0) {
+            return;
+        }
+        long sent = pending[head];
+        head = (head + 1) & (pending.length - 1);
+        size--;
+        histogram.record(System.nanoTime() - sent);
+        if (listener != null) {
+            listener.completed(ctx);
+        }
+    }
+
+    private void push(long nanos) {
+        if (size == pending.length) {
+            long[] grown = new long[pending.length << 1];
+            for (int i = 0; i < size; i++) {
+                grown[i] = pending[(head + i) & (pending.length - 1)];
+            }
+            pending = grown;
+            head = 0;
+        }
+        pending[(head + size) & (pending.length - 1)] = nanos;
+        size++;
+    }
+}
@@ -0,0 +1,171 @@
+package com.cxf.loadgen;
+
+import com.cxf.transport.Transports;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by cxf on 2019/1/10.
+ */
+
+/**
+ * 通用压测客户端，参数都用-D传：
+ *   host/port   ---> 目标服务器
+ *   mode        ---> open：开环，按rate的速率发请求，不管响应有没有回来；
+ *                    closed：闭环，每个连接保持pipeline个在途请求，收到一个响应再发下一个
+ *   rate        ---> 开环模式下每秒请求数
+ *   connections ---> 连接数
+ *   pipeline    ---> 闭环模式下每个连接的在途请求数
+ *   duration    ---> 压测秒数
+ *   size        ---> 请求字节数
+ *   protocol    ---> echo：服务端原样写回（nettyserver.EchoServer的流水线模式、PlainOioServer、PlainNioServer）；
+ *                    reply：服务端每个请求回一条没有分帧的响应（HelloWorldServer等），要配合闭环、pipeline=1使用
+ *
+ * 开环模式下延迟从请求"计划发送的时间"开始算，而不是实际发出去的时间：服务端变慢、发送线程被拖住时，
+ * 后面排队的请求的等待时间也会算进延迟里，不会出现coordinated omission（只统计到了慢请求本身）。
+ *
+ * 每秒打印一行这一秒的吞吐和p50/p90/p99/p99.9/max，结束时打印全程的统计。
+ */
+public class LoadGenerator {
+
+    static final String HOST = System.getProperty("host", "127.0.0.1");
+    static final int PORT = Integer.parseInt(System.getProperty("port", "8080"));
+    static final String MODE = System.getProperty("mode", "closed");
+    static final int RATE = Integer.parseInt(System.getProperty("rate", "10000"));
+    static final int CONNECTIONS = Integer.parseInt(System.getProperty("connections", "16"));
+    static final int PIPELINE = Integer.parseInt(System.getProperty("pipeline", "1"));
+    static final int DURATION = Integer.parseInt(System.getProperty("duration", "30"));
+    static final int SIZE = Integer.parseInt(System.getProperty("size", "64"));
+    static final String PROTOCOL = System.getProperty("protocol", "echo");
+
+    //EventLoop线程记录，打印线程每秒取走
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    private volatile boolean running = true;
+
+    public void run() throws Exception {
+        final boolean open = "open".equals(MODE);
+        final boolean echo = "echo".equals(PROTOCOL);
+        final ByteBuf payload = Unpooled.unreleasableBuffer(Unpooled.directBuffer(SIZE).writeZero(SIZE));
+        //闭环：收到响应后在同一个连接上立刻发下一个
+        final LoadClientHandler.CompletionListener next = open ? null : new LoadClientHandler.CompletionListener() {
+            @Override
+            public void completed(ChannelHandlerContext ctx) {
+                if (running) {
+                    //从channel写而不是从ctx写，这样会经过LoadClientHandler.write()记录发送时间
+                    ctx.channel().writeAndFlush(new LoadClientHandler.Request(System.nanoTime()), ctx.channel().voidPromise());
+                }
+            }
+        };
+
+        EventLoopGroup group = Transports.newEventLoopGroup();
+        try {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(Transports.socketChannelClass())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new LoadClientHandler(payload, echo, interval, next));
+                        }
+                    });
+            Channel[] channels = new Channel[CONNECTIONS];
+            for (int i = 0; i < CONNECTIONS; i++) {
+                channels[i] = bootstrap.connect(HOST, PORT).sync().channel();
+            }
+            System.out.println("load: mode=" + MODE + (open ? " rate=" + RATE : " pipeline=" + PIPELINE)
+                    + " connections=" + CONNECTIONS + " size=" + SIZE + " protocol=" + PROTOCOL
+                    + " target=" + HOST + ":" + PORT);
+
+            Thread reporter = new Thread(new Runnable() {
+                public void run() {
+                    report();
+                }
+            }, "load-reporter");
+            reporter.setDaemon(true);
+            long start = System.nanoTime();
+            reporter.start();
+
+            if (open) {
+                sendOpenLoop(channels, start);
+            } else {
+                for (Channel channel : channels) {
+                    for (int i = 0; i < PIPELINE; i++) {
+                        channel.writeAndFlush(new LoadClientHandler.Request(System.nanoTime()), channel.voidPromise());
+                    }
+                }
+                Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION));
+            }
+            running = false;
+            //给在途的请求一点时间回来
+            Thread.sleep(1000);
+            reporter.interrupt();
+            reporter.join();
+            long elapsed = System.nanoTime() - start;
+
+            total.add(interval.snapshotAndReset());
+            System.out.println("total: " + total.count() + " requests, "
+                    + total.count() * TimeUnit.SECONDS.toNanos(1) / elapsed + " req/s, " + percentiles(total));
+            for (Channel channel : channels) {
+                channel.close();
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 第i个请求的计划发送时间是start + i/rate，时间没到就park，已经落后了就马上发（延迟按计划时间算）
+     */
+    private void sendOpenLoop(Channel[] channels, long start) {
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION);
+        for (long i = 0; ; i++) {
+            long intended = start + i * TimeUnit.SECONDS.toNanos(1) / RATE;
+            if (intended >= end) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Channel channel = channels[(int) (i % channels.length)];
+            channel.writeAndFlush(new LoadClientHandler.Request(intended), channel.voidPromise());
+        }
+    }
+
+    private void report() {
+        int second = 0;
+        while (running) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            LatencyHistogram snapshot = interval.snapshotAndReset();
+            total.add(snapshot);
+            System.out.println(String.format("%4ds %9d req/s  %s", ++second, snapshot.count(), percentiles(snapshot)));
+        }
+    }
+
+    private static String percentiles(LatencyHistogram h) {
+        return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                h.percentile(99.9) / 1000.0, h.max() / 1000.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+}
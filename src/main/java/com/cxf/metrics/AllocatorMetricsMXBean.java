@@ -0,0 +1,49 @@
+package com.cxf.metrics;
+
+/**
+ * Created by cxf on 2019/1/12.
+ */
+
+/**
+ * PooledByteBufAllocator的状态，ObjectName为 com.cxf.metrics:type=Allocator，都是最近一次采样的值
+ */
+public interface AllocatorMetricsMXBean {
+
+    long getUsedDirectMemory();
+
+    long getUsedHeapMemory();
+
+    long getMaxDirectMemory();
+
+    /**
+     * JDK的direct BufferPool统计（ByteBuffer.allocateDirect分配的部分）
+     */
+    long getJdkDirectMemory();
+
+    int getDirectChunks();
+
+    /**
+     * 所有direct chunk的平均使用率，0到100
+     */
+    int getDirectChunkUsage();
+
+    int getThreadLocalCaches();
+
+    /**
+     * 下面几个是走到arena上的分配次数；线程缓存命中的分配直接从缓存返回，不计在arena里，
+     * 所以这几个值的增长速度就是线程缓存没命中的速度
+     */
+    long getTinyAllocations();
+
+    long getSmallAllocations();
+
+    long getNormalAllocations();
+
+    long getHugeAllocations();
+
+    long getActiveAllocations();
+
+    long getActiveBytes();
+
+    long getLeaks();
+}
@@ -0,0 +1,199 @@
+package com.cxf.metrics;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.util.internal.PlatformDependent;
+
+import javax.management.ObjectName;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by cxf on 2019/1/12.
+ */
+
+/**
+ * 定时采样PooledByteBufAllocator的arena和线程缓存状态：chunk数和使用率、tiny/small/normal/huge分配次数、
+ * 已用的direct/heap内存，加上LeakCounter统计的泄漏次数。结果通过JMX发布(com.cxf.metrics:type=Allocator)，
+ * 同时每次采样打印一行，用来确定-XX:MaxDirectMemorySize（或-Dio.netty.maxDirectMemory）该设多大。
+ *
+ * 遍历chunk要对arena里的链表做快照，有一定开销，所以是定时采样而不是每次JMX读取时计算。
+ */
+public class AllocatorReporter implements AllocatorMetricsMXBean {
+
+    private final PooledByteBufAllocator allocator;
+    private final long interval;
+    private final TimeUnit unit;
+    private final BufferPoolMXBean jdkDirect;
+
+    private volatile long usedDirectMemory;
+    private volatile long usedHeapMemory;
+    private volatile long jdkDirectMemory;
+    private volatile int directChunks;
+    private volatile int directChunkUsage;
+    private volatile int threadLocalCaches;
+    private volatile long tinyAllocations;
+    private volatile long smallAllocations;
+    private volatile long normalAllocations;
+    private volatile long hugeAllocations;
+    private volatile long activeAllocations;
+    private volatile long activeBytes;
+
+    public AllocatorReporter(PooledByteBufAllocator allocator, long interval, TimeUnit unit) {
+        this.allocator = allocator;
+        this.interval = interval;
+        this.unit = unit;
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                direct = pool;
+            }
+        }
+        this.jdkDirect = direct;
+    }
+
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.cxf.metrics:type=Allocator"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "allocator-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+                System.out.println(summary());
+            }
+        }, interval, interval, unit);
+    }
+
+    void sample() {
+        PooledByteBufAllocatorMetric metric = allocator.metric();
+        long tiny = 0, small = 0, normal = 0, huge = 0, active = 0, bytes = 0;
+        int chunks = 0;
+        long usage = 0;
+        for (PoolArenaMetric arena : metric.directArenas()) {
+            tiny += arena.numTinyAllocations();
+            small += arena.numSmallAllocations();
+            normal += arena.numNormalAllocations();
+            huge += arena.numHugeAllocations();
+            active += arena.numActiveAllocations();
+            bytes += arena.numActiveBytes();
+            for (PoolChunkListMetric list : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : list) {
+                    chunks++;
+                    usage += chunk.usage();
+                }
+            }
+        }
+        tinyAllocations = tiny;
+        smallAllocations = small;
+        normalAllocations = normal;
+        hugeAllocations = huge;
+        activeAllocations = active;
+        activeBytes = bytes;
+        directChunks = chunks;
+        directChunkUsage = chunks == 0 ? 0 : (int) (usage / chunks);
+        threadLocalCaches = metric.numThreadLocalCaches();
+        usedDirectMemory = metric.usedDirectMemory();
+        usedHeapMemory = metric.usedHeapMemory();
+        jdkDirectMemory = jdkDirect == null ? -1 : jdkDirect.getMemoryUsed();
+    }
+
+    String summary() {
+        return "allocator: direct=" + (usedDirectMemory >> 10) + "KB/" + (getMaxDirectMemory() >> 10) + "KB"
+                + " heap=" + (usedHeapMemory >> 10) + "KB"
+                + " jdkDirect=" + (jdkDirectMemory >> 10) + "KB"
+                + " chunks=" + directChunks + " chunkUsage=" + directChunkUsage + "%"
+                + " caches=" + threadLocalCaches
+                + " arenaAllocs(tiny/small/normal/huge)=" + tinyAllocations + "/" + smallAllocations
+                + "/" + normalAllocations + "/" + hugeAllocations
+                + " active=" + activeAllocations + "(" + (activeBytes >> 10) + "KB)"
+                + " leaks=" + LeakCounter.leaks();
+    }
+
+    @Override
+    public long getUsedDirectMemory() {
+        return usedDirectMemory;
+    }
+
+    @Override
+    public long getUsedHeapMemory() {
+        return usedHeapMemory;
+    }
+
+    @Override
+    public long getMaxDirectMemory() {
+        return PlatformDependent.maxDirectMemory();
+    }
+
+    @Override
+    public long getJdkDirectMemory() {
+        return jdkDirectMemory;
+    }
+
+    @Override
+    public int getDirectChunks() {
+        return directChunks;
+    }
+
+    @Override
+    public int getDirectChunkUsage() {
+        return directChunkUsage;
+    }
+
+    @Override
+    public int getThreadLocalCaches() {
+        return threadLocalCaches;
+    }
+
+    @Override
+    public long getTinyAllocations() {
+        return tinyAllocations;
+    }
+
+    @Override
+    public long getSmallAllocations() {
+        return smallAllocations;
+    }
+
+    @Override
+    public long getNormalAllocations() {
+        return normalAllocations;
+    }
+
+    @Override
+    public long getHugeAllocations() {
+        return hugeAllocations;
+    }
+
+    @Override
+    public long getActiveAllocations() {
+        return activeAllocations;
+    }
+
+    @Override
+    public long getActiveBytes() {
+        return activeBytes;
+    }
+
+    @Override
+    public long getLeaks() {
+        return LeakCounter.leaks();
+    }
+}
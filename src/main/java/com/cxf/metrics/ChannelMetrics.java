@@ -0,0 +1,99 @@
+package com.cxf.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 放在pipeline最前面，统计的是网络上实际收发的字节数；同时累加到所在EventLoop的EventLoopMetrics上。
+ *
+ * 所有计数都只在Channel所属的EventLoop线程上修改（单写者），JMX线程只读，所以volatile就够了，不需要原子操作
+ */
+class ChannelMetrics extends ChannelDuplexHandler {
+
+    private Channel channel;
+    private EventLoopMetrics loop;
+
+    volatile long bytesRead;
+    volatile long bytesWritten;
+    volatile long messagesDecoded;
+    volatile long messagesEncoded;
+    volatile long writabilityChanges;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        //ChannelInitializer在Channel注册之后才会添加handler，这时已经确定了所属的EventLoop
+        channel = ctx.channel();
+        loop = NettyMetrics.eventLoop(channel.eventLoop());
+        loop.channelAdded(this);
+        NettyMetrics.channelAdded(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        //Channel关闭后注销时pipeline里的handler都会被移除
+        loop.channelRemoved(this);
+        NettyMetrics.channelRemoved(this);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long n = size(msg);
+        bytesRead += n;
+        loop.bytesRead += n;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long n = size(msg);
+        bytesWritten += n;
+        loop.bytesWritten += n;
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        writabilityChanges++;
+        loop.writabilityChanges++;
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    void messageDecoded() {
+        messagesDecoded++;
+        loop.messagesDecoded++;
+    }
+
+    void messageEncoded() {
+        messagesEncoded++;
+        loop.messagesEncoded++;
+    }
+
+    long pendingOutboundBytes() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    @Override
+    public String toString() {
+        return channel.id().asShortText() + " " + channel.remoteAddress() + " on " + loop.name();
+    }
+
+    private static long size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+}
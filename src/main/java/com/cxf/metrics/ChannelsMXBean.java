@@ -0,0 +1,20 @@
+package com.cxf.metrics;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 单个Channel不单独注册MBean（连接数很多时注册/注销MBean本身就是负担），
+ * 而是通过这个MBean按指标查出排名靠前的Channel，ObjectName为 com.cxf.metrics:type=Channels
+ */
+public interface ChannelsMXBean {
+
+    int getOpenChannels();
+
+    /**
+     * @param metric bytesRead、bytesWritten、messagesDecoded、messagesEncoded、writabilityChanges、pendingOutboundBytes之一
+     * @param n      返回前n个
+     */
+    String[] top(String metric, int n);
+}
@@ -0,0 +1,27 @@
+package com.cxf.metrics;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 每个EventLoop一个，ObjectName为 com.cxf.metrics:type=EventLoopLag,name=线程名，时间单位都是微秒
+ */
+public interface EventLoopLagMXBean {
+
+    long getSamples();
+
+    long getLagP50Micros();
+
+    long getLagP99Micros();
+
+    long getLagP999Micros();
+
+    long getLagMaxMicros();
+
+    long getAlarms();
+
+    long getAlarmThresholdMicros();
+
+    void reset();
+}
@@ -0,0 +1,141 @@
+package com.cxf.metrics;
+
+import com.cxf.loadgen.LatencyHistogram;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * EventLoop调度延迟探针：
+ *   在group里的每个EventLoop上用schedule()定时放一个空任务，记下它"应该"执行的时间，
+ *   任务真正执行时用当前时间减去应该执行的时间，就是这个EventLoop被拖延的时间。
+ *   某个handler里有阻塞调用（同步IO、锁、sync()等）时，同一个EventLoop上的定时任务会一起被拖住，延迟直接反映出来。
+ *
+ * 每个EventLoop的延迟记录在自己的直方图里，通过JMX发布（com.cxf.metrics:type=EventLoopLag），
+ * 延迟超过告警阈值时打印告警。
+ *
+ * 任务在执行完之后才调度下一次，所以一个EventLoop上同时只有一个探针任务。
+ */
+public class EventLoopLagProbe {
+
+    private final EventLoopGroup group;
+    private final long intervalNanos;
+    private final long alarmNanos;
+
+    private volatile boolean running;
+
+    public EventLoopLagProbe(EventLoopGroup group, long interval, long alarmThreshold, TimeUnit unit) {
+        this.group = group;
+        this.intervalNanos = unit.toNanos(interval);
+        this.alarmNanos = unit.toNanos(alarmThreshold);
+    }
+
+    public void start() {
+        running = true;
+        for (EventExecutor executor : group) {
+            LoopProbe probe = new LoopProbe(executor);
+            probe.schedule();
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private final class LoopProbe implements Runnable, EventLoopLagMXBean {
+
+        private final EventExecutor executor;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private volatile long alarms;
+        private long deadline;
+        private String name;
+
+        LoopProbe(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        void schedule() {
+            deadline = System.nanoTime() + intervalNanos;
+            executor.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            long lag = System.nanoTime() - deadline;
+            if (name == null) {
+                //第一次执行时在EventLoop自己的线程上，用线程名注册MBean
+                name = Thread.currentThread().getName();
+                register(this, name);
+            }
+            histogram.record(lag);
+            if (lag > alarmNanos) {
+                alarms++;
+                System.err.println("EventLoop " + name + " stalled: task ran "
+                        + TimeUnit.NANOSECONDS.toMillis(lag) + "ms late (threshold "
+                        + TimeUnit.NANOSECONDS.toMillis(alarmNanos) + "ms)");
+            }
+            if (running && !executor.isShuttingDown()) {
+                schedule();
+            }
+        }
+
+        @Override
+        public long getSamples() {
+            return histogram.count();
+        }
+
+        @Override
+        public long getLagP50Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(histogram.percentile(50));
+        }
+
+        @Override
+        public long getLagP99Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(histogram.percentile(99));
+        }
+
+        @Override
+        public long getLagP999Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(histogram.percentile(99.9));
+        }
+
+        @Override
+        public long getLagMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(histogram.max());
+        }
+
+        @Override
+        public long getAlarms() {
+            return alarms;
+        }
+
+        @Override
+        public long getAlarmThresholdMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(alarmNanos);
+        }
+
+        @Override
+        public void reset() {
+            histogram.snapshotAndReset();
+            alarms = 0;
+        }
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.cxf.metrics:type=EventLoopLag,name=" + ObjectName.quote(name));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.cxf.metrics;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 累计值都由这个EventLoop自己的线程修改（上面所有Channel的handler都跑在这个线程上），JMX线程只读
+ */
+class EventLoopMetrics implements EventLoopMetricsMXBean {
+
+    private final EventLoop eventLoop;
+    private final String name;
+    private final Set<ChannelMetrics> channels = ConcurrentHashMap.newKeySet();
+
+    volatile long bytesRead;
+    volatile long bytesWritten;
+    volatile long messagesDecoded;
+    volatile long messagesEncoded;
+    volatile long writabilityChanges;
+
+    EventLoopMetrics(EventLoop eventLoop, String name) {
+        this.eventLoop = eventLoop;
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void channelAdded(ChannelMetrics channel) {
+        channels.add(channel);
+    }
+
+    void channelRemoved(ChannelMetrics channel) {
+        channels.remove(channel);
+    }
+
+    @Override
+    public int getRegisteredChannels() {
+        return channels.size();
+    }
+
+    /**
+     * 任务队列里还没执行的任务数，持续增长说明这个EventLoop已经忙不过来了
+     */
+    @Override
+    public int getPendingTasks() {
+        if (eventLoop instanceof SingleThreadEventExecutor) {
+            return ((SingleThreadEventExecutor) eventLoop).pendingTasks();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long getMessagesDecoded() {
+        return messagesDecoded;
+    }
+
+    @Override
+    public long getMessagesEncoded() {
+        return messagesEncoded;
+    }
+
+    @Override
+    public long getWritabilityChanges() {
+        return writabilityChanges;
+    }
+
+    @Override
+    public long getPendingOutboundBytes() {
+        long total = 0;
+        for (ChannelMetrics channel : channels) {
+            total += channel.pendingOutboundBytes();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,29 @@
+package com.cxf.metrics;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 每个EventLoop一个，ObjectName为 com.cxf.metrics:type=EventLoop,name=线程名
+ *
+ * 字节数、消息数、可写状态变化次数是这个EventLoop上所有安装了NettyMetrics的Channel的累计值
+ */
+public interface EventLoopMetricsMXBean {
+
+    int getRegisteredChannels();
+
+    int getPendingTasks();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getMessagesDecoded();
+
+    long getMessagesEncoded();
+
+    long getWritabilityChanges();
+
+    long getPendingOutboundBytes();
+}
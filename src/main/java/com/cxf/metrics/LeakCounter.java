@@ -0,0 +1,70 @@
+package com.cxf.metrics;
+
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by cxf on 2019/1/12.
+ */
+
+/**
+ * ResourceLeakDetector只会打日志，不提供计数。这里替换掉全局的ResourceLeakDetectorFactory，
+ * 让创建出来的detector在报告泄漏时顺便计数，日志照常输出。
+ *
+ * ByteBuf的leak detector在AbstractByteBuf类加载时就创建了，所以install()必须在用到任何ByteBuf之前调用（main的第一行）。
+ */
+public final class LeakCounter {
+
+    private static final AtomicLong LEAKS = new AtomicLong();
+    private static volatile boolean installed;
+
+    private LeakCounter() {
+    }
+
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval) {
+                return new CountingDetector<T>(resource, samplingInterval);
+            }
+
+            /**
+             * 4.1.10里这个方法还是abstract，只能实现；maxActive已经不起作用，转到上面的方法
+             */
+            @Deprecated
+            @Override
+            public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+                return newResourceLeakDetector(resource, samplingInterval);
+            }
+        });
+    }
+
+    public static long leaks() {
+        return LEAKS.get();
+    }
+
+    private static final class CountingDetector<T> extends ResourceLeakDetector<T> {
+
+        CountingDetector(Class<?> resource, int samplingInterval) {
+            super(resource, samplingInterval);
+        }
+
+        @Override
+        protected void reportTracedLeak(String resourceType, String records) {
+            LEAKS.incrementAndGet();
+            super.reportTracedLeak(resourceType, records);
+        }
+
+        @Override
+        protected void reportUntracedLeak(String resourceType) {
+            LEAKS.incrementAndGet();
+            super.reportUntracedLeak(resourceType);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.cxf.metrics;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * 放在业务handler前面：入站方向经过这里的是解码器产出的消息，出站方向经过这里的是业务handler写出、还没有被编码的消息
+ */
+class MessageCounter extends ChannelDuplexHandler {
+
+    private final ChannelMetrics metrics;
+
+    MessageCounter(ChannelMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        metrics.messageDecoded();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        metrics.messageEncoded();
+        ctx.write(msg, promise);
+    }
+}
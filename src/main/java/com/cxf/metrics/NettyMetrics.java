@@ -0,0 +1,140 @@
+package com.cxf.metrics;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Created by cxf on 2019/1/11.
+ */
+
+/**
+ * Channel和EventLoop的运行指标，通过JMX发布(jconsole/jvisualvm里看 com.cxf.metrics)：
+ *   com.cxf.metrics:type=EventLoop,name=线程名 ---> 每个EventLoop的Channel数、任务队列长度、收发字节/消息数等
+ *   com.cxf.metrics:type=Channels              ---> 按指标查出排名靠前的Channel，用来定位是哪个客户端把EventLoop拖住了
+ *
+ * 用法：在ChannelInitializer.initChannel()的最后调用 NettyMetrics.install(ch)
+ *
+ * 注意：Netty 4.1.10的NioEventLoop/EpollEventLoop都没有暴露selector被wakeup的次数，
+ * 这里用任务队列长度来反映EventLoop的积压情况。
+ */
+public final class NettyMetrics {
+
+    private static final ConcurrentMap<EventLoop, EventLoopMetrics> LOOPS = new ConcurrentHashMap<EventLoop, EventLoopMetrics>();
+    private static final Set<ChannelMetrics> CHANNELS = ConcurrentHashMap.newKeySet();
+
+    static {
+        register("com.cxf.metrics:type=Channels", new ChannelsMXBean() {
+            @Override
+            public int getOpenChannels() {
+                return CHANNELS.size();
+            }
+
+            @Override
+            public String[] top(String metric, int n) {
+                return NettyMetrics.top(metric, n);
+            }
+        });
+    }
+
+    private NettyMetrics() {
+    }
+
+    /**
+     * 在pipeline最前面加字节计数，在最后一个handler（业务handler）前面加消息计数，
+     * 所以要在initChannel()里其他handler都加完之后再调用
+     */
+    public static void install(Channel ch) {
+        ChannelPipeline pipeline = ch.pipeline();
+        ChannelMetrics metrics = new ChannelMetrics();
+        String last = pipeline.lastContext() == null ? null : pipeline.lastContext().name();
+        pipeline.addFirst("metrics", metrics);
+        if (last != null) {
+            pipeline.addBefore(last, "metrics-messages", new MessageCounter(metrics));
+        }
+    }
+
+    static EventLoopMetrics eventLoop(EventLoop eventLoop) {
+        EventLoopMetrics metrics = LOOPS.get(eventLoop);
+        if (metrics != null) {
+            return metrics;
+        }
+        //第一次在这个EventLoop上安装时调用，当前线程就是EventLoop的线程
+        String name = Thread.currentThread().getName();
+        metrics = new EventLoopMetrics(eventLoop, name);
+        EventLoopMetrics previous = LOOPS.putIfAbsent(eventLoop, metrics);
+        if (previous != null) {
+            return previous;
+        }
+        register("com.cxf.metrics:type=EventLoop,name=" + ObjectName.quote(name), metrics);
+        return metrics;
+    }
+
+    static void channelAdded(ChannelMetrics channel) {
+        CHANNELS.add(channel);
+    }
+
+    static void channelRemoved(ChannelMetrics channel) {
+        CHANNELS.remove(channel);
+    }
+
+    static String[] top(final String metric, int n) {
+        List<ChannelMetrics> channels = new ArrayList<ChannelMetrics>(CHANNELS);
+        final List<Long> values = new ArrayList<Long>(channels.size());
+        for (ChannelMetrics channel : channels) {
+            values.add(value(channel, metric));
+        }
+        List<Integer> order = new ArrayList<Integer>(channels.size());
+        for (int i = 0; i < channels.size(); i++) {
+            order.add(i);
+        }
+        //先把值取出来再排序，排序过程中计数还在变化
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(values.get(b), values.get(a));
+            }
+        });
+        String[] result = new String[Math.min(n, channels.size())];
+        for (int i = 0; i < result.length; i++) {
+            int index = order.get(i);
+            result[i] = channels.get(index) + " " + metric + "=" + values.get(index);
+        }
+        return result;
+    }
+
+    private static long value(ChannelMetrics channel, String metric) {
+        if ("bytesRead".equals(metric)) {
+            return channel.bytesRead;
+        } else if ("bytesWritten".equals(metric)) {
+            return channel.bytesWritten;
+        } else if ("messagesDecoded".equals(metric)) {
+            return channel.messagesDecoded;
+        } else if ("messagesEncoded".equals(metric)) {
+            return channel.messagesEncoded;
+        } else if ("writabilityChanges".equals(metric)) {
+            return channel.writabilityChanges;
+        } else if ("pendingOutboundBytes".equals(metric)) {
+            return channel.pendingOutboundBytes();
+        }
+        throw new IllegalArgumentException("unknown metric: " + metric);
+    }
+
+    private static void register(String name, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package com.cxf.nettyserver;
 
+import com.cxf.metrics.AllocatorReporter;
+import com.cxf.metrics.EventLoopLagProbe;
+import com.cxf.metrics.LeakCounter;
+import com.cxf.metrics.NettyMetrics;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 引导：
@@ -53,31 +64,75 @@ import java.net.InetSocketAddress;
  */
 public class EchoServer {
 
+    //-Dmetrics=true 时给每个连接安装NettyMetrics，在每个EventLoop上运行调度延迟探针，并定时打印内存池状态
+    private static final boolean METRICS = Boolean.getBoolean("metrics");
+    //调度延迟超过这个毫秒数时告警
+    private static final long LAG_ALARM_MILLIS = Long.getLong("lagAlarmMillis", 100);
+
     private final int port;
+    //监听套接字的数量，大于1时使用SO_REUSEPORT在同一端口上绑定多个监听Channel（每个EventLoop一个）
+    private final int acceptors;
+    //大于0时使用长连接流水线模式，每flushEvery条消息至少flush一次；为0时是原来的读完一批就关闭连接的模式
+    private final int flushEvery;
+    //为true时EchoServerHandler不打印收到的消息
+    private final boolean quiet;
     public EchoServer(int port) {
+        this(port, 1);
+    }
+    public EchoServer(int port, int acceptors) {
+        this(port, acceptors, 0);
+    }
+    public EchoServer(int port, int acceptors, int flushEvery) {
+        this(port, acceptors, flushEvery, false);
+    }
+    public EchoServer(int port, int acceptors, int flushEvery, boolean quiet) {
         this.port = port;
+        this.acceptors = acceptors;
+        this.flushEvery = flushEvery;
+        this.quiet = quiet;
     }
     public static void main(String[] args) throws Exception {
-
+        if (METRICS) {
+            //要在第一个ByteBuf创建之前替换掉泄漏检测器
+            LeakCounter.install();
+        }
 //        if (args.length != 1) {
 //            System.err.println("Usage: " + EchoServer.class.getSimpleName() + " <port>");
 //        }
         //设置端口值（如果端口参数的格式不正确，则抛出一个NumberFormatException）
         int port = 1111;
+        //-Dacceptors=N 开启多监听模式
+        int acceptors = Integer.parseInt(System.getProperty("acceptors", "1"));
+        //-DflushEvery=N 开启长连接流水线模式
+        int flushEvery = Integer.parseInt(System.getProperty("flushEvery", "0"));
         //调用服务器的 start()方法
-        new EchoServer(port).start();
+        new EchoServer(port, acceptors, flushEvery).start();
     }
 
     public void start() throws Exception {
 
-        final EchoServerHandler serverHandler = new EchoServerHandler();
-        //创建EventLoopGroup
-        EventLoopGroup group = new NioEventLoopGroup();
+        final EchoServerHandler serverHandler = new EchoServerHandler(quiet);
+        //SO_REUSEPORT只有epoll传输支持，NIO下退回单个监听套接字
+        int listeners = acceptors;
+        if (listeners > 1 && !Transports.isEpoll()) {
+            System.out.println("SO_REUSEPORT requires epoll transport, falling back to a single acceptor");
+            listeners = 1;
+        }
+        //创建EventLoopGroup，多监听模式下线程数与监听数相同，这样每个EventLoop正好负责一个监听套接字
+        EventLoopGroup group = Transports.newEventLoopGroup(listeners > 1 ? listeners : 0);
+        if (METRICS) {
+            //每100ms在每个EventLoop上放一个定时任务，看它晚了多久执行
+            new EventLoopLagProbe(group, 100, LAG_ALARM_MILLIS, TimeUnit.MILLISECONDS).start();
+            if (ByteBufAllocator.DEFAULT instanceof PooledByteBufAllocator) {
+                //-Dio.netty.allocator.type=unpooled 时没有池可以统计
+                new AllocatorReporter((PooledByteBufAllocator) ByteBufAllocator.DEFAULT, 10, TimeUnit.SECONDS).start();
+            }
+        }
         try {
             //创建ServerBootstrap
             ServerBootstrap b = new ServerBootstrap();
             b.group(group)
-                    .channel(NioServerSocketChannel.class)//指定所使用的 NIO 传输 Channel
+                    .channel(Transports.serverChannelClass())//指定所使用的传输 Channel（Linux 上为 epoll，否则为 NIO）
                     .localAddress(new InetSocketAddress(port))//使用指定的端口设置套接字地址
                     //当一个新的连接被接受时，一个新的子 Channel 将会被创建，而 ChannelInitializer
                     // 将会把一个你的EchoServerHandler 的实例添加到该 Channel 的 ChannelPipeline
@@ -86,12 +141,39 @@ public class EchoServer {
                     {
                         @Override
                         public void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline().addLast(serverHandler);//EchoServerHandler被标注为@Shareable，所以我们可以总是使用同样的实例
+                            if (flushEvery > 0) {
+                                //流水线模式的handler有每个连接自己的计数，每个Channel一个实例
+                                ch.pipeline().addLast(new PipelinedEchoServerHandler(flushEvery));
+                            } else {
+                                ch.pipeline().addLast(serverHandler);//EchoServerHandler被标注为@Shareable，所以我们可以总是使用同样的实例
+                            }
+                            if (METRICS) {
+                                //handler都加完之后再安装，通过JMX查看
+                                NettyMetrics.install(ch);
+                            }
                         }
                     });
+            if (flushEvery > 0) {
+                //出站缓冲超过64K时Channel变为不可写，PipelinedEchoServerHandler据此暂停读，降到32K以下再恢复
+                b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024));
+            }
 
-            ChannelFuture f = b.bind().sync();//异步地绑定服务器；调用 sync()方法阻塞 等待直到绑定完成
-            f.channel().closeFuture().sync();//获取 Channel的CloseFuture，并且阻塞当前线程直到它完成
+            if (listeners > 1) {
+                //多个套接字绑定到同一个端口，由内核把新连接分散到各个监听套接字上，accept()不再串行在一个线程上
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+                //每次bind()都会创建一个新的ServerChannel，并按顺序注册到group中的下一个EventLoop
+                List<ChannelFuture> binds = new ArrayList<ChannelFuture>(listeners);
+                for (int i = 0; i < listeners; i++) {
+                    binds.add(b.bind().sync());
+                }
+                System.out.println("EchoServer listening on " + port + " with " + listeners + " SO_REUSEPORT acceptors");
+                for (ChannelFuture f : binds) {
+                    f.channel().closeFuture().sync();
+                }
+            } else {
+                ChannelFuture f = b.bind().sync();//异步地绑定服务器；调用 sync()方法阻塞 等待直到绑定完成
+                f.channel().closeFuture().sync();//获取 Channel的CloseFuture，并且阻塞当前线程直到它完成
+            }
         } finally {
             group.shutdownGracefully().sync();//关闭 EventLoopGroup释放资源
         }
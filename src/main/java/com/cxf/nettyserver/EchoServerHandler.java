@@ -62,6 +62,17 @@ import io.netty.util.CharsetUtil;
 @ChannelHandler.Sharable //===>标示一个ChannelHandler 可以被多个 Channel 安全地共享
 public class EchoServerHandler extends ChannelInboundHandlerAdapter {
 
+    //为true时不打印收到的消息，压测时只比较回写和关闭连接的开销，不让控制台输出占掉大部分时间
+    private final boolean quiet;
+
+    public EchoServerHandler() {
+        this(false);
+    }
+
+    public EchoServerHandler(boolean quiet) {
+        this.quiet = quiet;
+    }
+
     /**
      * 对于每个传入的消息都要调用
      * @param ctx
@@ -70,7 +81,9 @@ public class EchoServerHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         ByteBuf in = (ByteBuf) msg;
-        System.out.println("Server received: " + in.toString(CharsetUtil.UTF_8));
+        if (!quiet) {
+            System.out.println("Server received: " + in.toString(CharsetUtil.UTF_8));
+        }
         //将接收到的消息写给发送者，而不冲刷出站消息
         ctx.write(in);
     }
@@ -0,0 +1,78 @@
+package com.cxf.nettyserver;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Created by cxf on 2019/1/8.
+ */
+
+/**
+ * 长连接、流水线模式的Echo：
+ *   1.每条消息只write不flush，每攒够flushEvery条或者本批次读完(channelReadComplete)时才flush一次，
+ *     一次flush对应一次系统调用，消息越密集合并的效果越明显
+ *   2.读完一批之后不关闭Channel，同一个连接上可以一直收发
+ *   3.出站缓冲超过高水位(WRITE_BUFFER_WATER_MARK)时Channel变为不可写，此时关闭autoRead不再从对端读数据，
+ *     等出站数据冲刷到低水位以下、Channel重新可写时再打开autoRead，避免对端只发不收把服务端内存撑爆
+ *
+ * 每个Channel都有自己的计数，所以不能标注@Sharable，每个连接new一个实例
+ */
+public class PipelinedEchoServerHandler extends ChannelInboundHandlerAdapter {
+
+    private final int flushEvery;
+
+    //自上次flush以来写出但还未冲刷的消息数
+    private int pendingWrites;
+
+    public PipelinedEchoServerHandler(int flushEvery) {
+        if (flushEvery <= 0) {
+            throw new IllegalArgumentException("flushEvery: " + flushEvery + " (expected: > 0)");
+        }
+        this.flushEvery = flushEvery;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        //不需要知道每次写的结果，用voidPromise避免为每条消息创建一个ChannelPromise，写失败会走exceptionCaught
+        ctx.write(msg, ctx.voidPromise());
+        if (++pendingWrites >= flushEvery) {
+            flush(ctx);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (pendingWrites > 0) {
+            flush(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        if (channel.isWritable()) {
+            //已经降到低水位以下，恢复读
+            channel.config().setAutoRead(true);
+        } else {
+            //超过高水位，先把已经write的数据冲刷出去，并暂停读
+            channel.config().setAutoRead(false);
+            if (pendingWrites > 0) {
+                flush(ctx);
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        pendingWrites = 0;
+        ctx.flush();
+    }
+}
@@ -1,5 +1,6 @@
 package com.cxf.nettyserverdtails;
 
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -7,8 +8,6 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.ImmediateEventExecutor;
 
 import java.net.InetSocketAddress;
@@ -19,14 +18,14 @@ import java.net.InetSocketAddress;
 public class ChatServer {
     //创建DefaultChannelGroup，其将保存所有已经连接的WebSocket Channel
     private final ChannelGroup channelGroup = new DefaultChannelGroup(ImmediateEventExecutor.INSTANCE);
-    private final EventLoopGroup group = new NioEventLoopGroup();
+    private final EventLoopGroup group = Transports.newEventLoopGroup();
     private Channel channel;
 
     public ChannelFuture start(InetSocketAddress address) {
         //引导服务器
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(group)
-                .channel(NioServerSocketChannel.class)
+                .channel(Transports.serverChannelClass())
                 .childHandler(createInitializer(channelGroup));
         ChannelFuture future = bootstrap.bind(address);
         future.syncUninterruptibly();
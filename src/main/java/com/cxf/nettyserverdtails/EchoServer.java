@@ -1,15 +1,14 @@
 package com.cxf.nettyserverdtails;
 
 import com.cxf.nettyserver.EchoServerHandler;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.CharsetUtil;
 
 import java.net.InetSocketAddress;
@@ -42,12 +41,12 @@ public class EchoServer {
 
         final EchoServerHandler serverHandler = new EchoServerHandler();
         //创建EventLoopGroup
-        EventLoopGroup group = new NioEventLoopGroup();
+        EventLoopGroup group = Transports.newEventLoopGroup();
         try {
             //创建ServerBootstrap
             ServerBootstrap b = new ServerBootstrap();
             b.group(group)
-                    .channel(NioServerSocketChannel.class)//指定所使用的 NIO 传输 Channel
+                    .channel(Transports.serverChannelClass())//指定所使用的传输 Channel（Linux 上为 epoll，否则为 NIO）
                     .localAddress(new InetSocketAddress(port))//使用指定的端口设置套接字地址
                     .childHandler(new ChannelInitializer<SocketChannel>()//添加一个EchoServerHandler 到子Channel的ChannelPipeline
                     {
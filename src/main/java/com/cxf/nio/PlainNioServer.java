@@ -2,14 +2,16 @@ package com.cxf.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by cxf on 2018/11/15.
@@ -17,21 +19,40 @@ import java.util.Set;
 
 /**
  * 未使用 Netty 的异步网络编程
+ *
+ * 多Reactor模型：
+ *   1.调用serve()的线程作为acceptor，它的Selector上只注册OP_ACCEPT
+ *   2.N个worker线程各自持有一个Selector，acceptor把新连接轮流交给它们，之后这个连接的读写都只在这个worker上进行
+ *   3.每个连接在注册时分配一个固定大小的直接内存ByteBuffer，之后一直复用，读写时不再分配内存
+ *   4.读到什么就写回什么；一次没写完就只关注OP_WRITE，等缓冲区写空了再重新关注OP_READ，
+ *     对端不读的话服务端也不会再读，不会无限堆积数据
  */
 public class PlainNioServer {
 
+    private static final int BUFFER_SIZE = 4 * 1024;
+
     public void serve(int port) throws IOException {
+        serve(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void serve(int port, int workers) throws IOException {
         ServerSocketChannel serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
-        ServerSocket ssocket = serverChannel.socket();
         InetSocketAddress address = new InetSocketAddress(port);
         //将服务器绑定到选定的端口
-        ssocket.bind(address);
+        serverChannel.socket().bind(address, 1024);
         //打开Selector来处理Channel
         Selector selector = Selector.open();
         //将ServerSocket 注册到Selector以接受连接
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        final ByteBuffer msg = ByteBuffer.wrap("Hi!\r\n".getBytes());
+
+        Worker[] reactors = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            reactors[i] = new Worker();
+            Thread thread = new Thread(reactors[i], "nio-worker-" + i);
+            thread.start();
+        }
+        int next = 0;
         for (;;) {
             try {
                 //等待需要处理的新事件；阻塞将一直持续到下一个传入事件
@@ -41,44 +62,139 @@ public class PlainNioServer {
                 // handle exception
                 break;
             }
-        }
-        //获取所有接收事件的SelectionKey 实例
-        Set<SelectionKey> readyKeys = selector.selectedKeys();
-        Iterator<SelectionKey> iterator = readyKeys.iterator();
-        while (iterator.hasNext()) {
-            SelectionKey key = iterator.next();
-            iterator.remove();
-            try {
+            //获取所有接收事件的SelectionKey 实例
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> iterator = readyKeys.iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
                 //检查事件是否是一个新的已经就绪可以被接受的连接
-                if (key.isAcceptable()) {
-                    ServerSocketChannel server = (ServerSocketChannel)key.channel();
-                    SocketChannel client = server.accept();
-                    client.configureBlocking(false);
-                    //接受客户端，并将它注册到选择器
-                    client.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, msg.duplicate());
-                    System.out.println("Accepted connection from " + client);
+                if (!key.isValid() || !key.isAcceptable()) {
+                    continue;
+                }
+                //一次把backlog里已经完成握手的连接都取出来
+                SocketChannel client;
+                while ((client = serverChannel.accept()) != null) {
+                    try {
+                        client.configureBlocking(false);
+                        client.socket().setTcpNoDelay(true);
+                        //轮流分配给worker
+                        reactors[next].register(client);
+                        next = (next + 1) % workers;
+                    } catch (IOException ex) {
+                        client.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个worker线程对应一个Selector，只处理分配给它的连接的读写
+     */
+    private static final class Worker implements Runnable {
+
+        private final Selector selector;
+        //acceptor线程放进来，worker线程在select()返回后取出来注册，register()必须在selector所在线程上调用才不会和select()互相阻塞
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        public void run() {
+            for (;;) {
+                try {
+                    selector.select();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    break;
                 }
-                //检查套接字是否已经准备好写数据
-                if (key.isWritable()) {
-                    SocketChannel client = (SocketChannel)key.channel();
-                    ByteBuffer buffer = (ByteBuffer)key.attachment();
-                    while (buffer.hasRemaining()) {
-                        //将数据写到已连接的客户端
-                        if (client.write(buffer) == 0) {
-                            break;
+                registerPending();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
                         }
+                    } catch (IOException ex) {
+                        close(key);
                     }
-                    client.close();
                 }
-            } catch (IOException ex) {
-                key.cancel();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
                 try {
-                    //关闭连接
-                    key.channel().close();
-                } catch (IOException cex) {
-                // ignore on close
+                    //连接的缓冲区在这里一次性分配好，作为attachment一直跟着这个连接
+                    client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER_SIZE));
+                } catch (ClosedChannelException ex) {
+                    // 还没注册就被关闭了，忽略
                 }
             }
         }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel client = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            int n = client.read(buffer);
+            if (n < 0) {
+                //对端关闭
+                close(key);
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            buffer.flip();
+            write(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            SocketChannel client = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            //将数据写到已连接的客户端，socket发送缓冲区满了write会返回0
+            client.write(buffer);
+            if (buffer.hasRemaining()) {
+                //没写完，先不读了，等可写时接着写
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                buffer.clear();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                //关闭连接
+                key.channel().close();
+            } catch (IOException cex) {
+                // ignore on close
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        } else {
+            port = 8080;
+        }
+        int workers = Integer.parseInt(System.getProperty("workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        new PlainNioServer().serve(port, workers);
     }
-}
\ No newline at end of file
+}
@@ -1,47 +1,208 @@
 package com.cxf.oio;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by cxf on 2018/11/15.
  */
+
+/**
+ * 阻塞IO的Echo服务器，连接的处理方式有三种：
+ *   THREAD  ---> 每个连接new一个Thread，线程数不设上限，连接多了以后线程栈会把内存吃光
+ *   POOL    ---> 固定大小的线程池加有界队列，线程和队列都满了以后新连接直接关闭（拒绝策略）
+ *   VIRTUAL ---> 每个连接一个虚拟线程，需要JDK 21及以上。项目按1.8编译，所以通过反射拿
+ *                Executors.newVirtualThreadPerTaskExecutor()
+ *
+ * -DstatsInterval=N 时每N秒打印一次当前连接数、平台线程数和进程RSS，用来对比各个模式的资源占用。
+ * 虚拟线程不算在ThreadMXBean的线程数里，看连接数和RSS就可以了。
+ */
 public class PlainOioServer {
+
+    public enum Mode {
+        THREAD, POOL, VIRTUAL
+    }
+
+    private static final int STATS_INTERVAL = Integer.parseInt(System.getProperty("statsInterval", "0"));
+
+    private final Mode mode;
+    private final int poolSize;
+    private final int queueSize;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PlainOioServer() {
+        this(Mode.THREAD, 0, 0);
+    }
+
+    /**
+     * @param poolSize  POOL模式下的线程数
+     * @param queueSize POOL模式下等待线程的连接队列长度
+     */
+    public PlainOioServer(Mode mode, int poolSize, int queueSize) {
+        if (mode == Mode.POOL && (poolSize <= 0 || queueSize <= 0)) {
+            throw new IllegalArgumentException("poolSize: " + poolSize + ", queueSize: " + queueSize + " (expected: > 0)");
+        }
+        this.mode = mode;
+        this.poolSize = poolSize;
+        this.queueSize = queueSize;
+    }
+
     public void serve(int port) throws IOException {
+        Executor executor = newExecutor();
+        if (STATS_INTERVAL > 0) {
+            startStatsReporter();
+        }
         //将服务器绑定到指定端口
-        final ServerSocket socket = new ServerSocket(port);
+        final ServerSocket socket = new ServerSocket(port, 1024);
         try {
             for (;;) {
                 //接受连接
                 final Socket clientSocket = socket.accept();
-                System.out.println("Accepted connection from " + clientSocket);
-                new Thread(new Runnable() {
-                    public void run() {
-                        OutputStream out;
-                        try {
-                            out = clientSocket.getOutputStream();
-                            byte[] b = {1,2};
-                            //将消息写给已连接的客户端
-                            out.write(b);
-                            out.flush();
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } finally {
-                            try {
-                                //关闭连接
-                                clientSocket.close();
-                            } catch (IOException ex) {
-                                // ignore on close
-                            }
+                //和Netty的默认值保持一致，关闭Nagle算法
+                clientSocket.setTcpNoDelay(true);
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            echo(clientSocket);
                         }
-                    }
-                }).start();
+                    });
+                } catch (RejectedExecutionException e) {
+                    //线程池和队列都满了，直接关闭这个连接
+                    rejected.incrementAndGet();
+                    closeQuietly(clientSocket);
+                }
             }
         }catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private void echo(Socket clientSocket) {
+        connections.incrementAndGet();
+        try {
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            byte[] b = new byte[1024];
+            int n;
+            //读到什么就写回什么，直到对端关闭连接
+            while ((n = in.read(b)) != -1) {
+                //将消息写回给已连接的客户端
+                out.write(b, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 对端重置连接等，直接关闭
+        } finally {
+            connections.decrementAndGet();
+            //关闭连接
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private Executor newExecutor() {
+        switch (mode) {
+            case POOL:
+                return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+            case VIRTUAL:
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (NoSuchMethodException e) {
+                    throw new UnsupportedOperationException("virtual threads require JDK 21+, running on "
+                            + System.getProperty("java.version"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            default:
+                return new Executor() {
+                    public void execute(Runnable command) {
+                        new Thread(command).start();
+                    }
+                };
+        }
+    }
+
+    private void startStatsReporter() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "oio-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.out.println("mode=" + mode
+                        + " connections=" + connections.get()
+                        + " threads=" + threads.getThreadCount()
+                        + " peakThreads=" + threads.getPeakThreadCount()
+                        + " rejected=" + rejected.get()
+                        + " rssKB=" + rssKb());
+            }
+        }, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 进程常驻内存，取自/proc/self/status的VmRSS，非Linux返回-1
+     */
+    private static long rssKb() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // 不是Linux
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // ignore on close
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        } else {
+            port = 8080;
+        }
+        Mode mode = Mode.valueOf(System.getProperty("mode", "thread").toUpperCase());
+        int poolSize = Integer.parseInt(System.getProperty("poolSize", "200"));
+        int queueSize = Integer.parseInt(System.getProperty("queueSize", "1024"));
+        new PlainOioServer(mode, poolSize, queueSize).serve(port);
+    }
 }
@@ -0,0 +1,96 @@
+package com.cxf.special.bin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Created by cxf on 2019/1/16.
+ */
+
+/**
+ * 握手帧(TYPE_HANDSHAKE)的内容：version(1) + maxFrameLength(4) + compression(1) + features(1)。
+ *
+ * 客户端发的是自己支持的全部能力（compression是支持的算法的位掩码），
+ * 服务端回的是协商结果（compression只有选中的那一位，或者0表示不压缩）。
+ * 以后的版本可以在后面加字段，解析时只读认识的部分。
+ */
+public final class Capabilities {
+
+    public static final byte VERSION = 1;
+
+    //客户端可以发TYPE_BATCH的批量帧
+    public static final byte FEATURE_BATCH = 0x01;
+
+    private static final int BODY_LENGTH = 7;
+
+    private final byte version;
+    private final int maxFrameLength;
+    private final byte compression;
+    private final byte features;
+
+    public Capabilities(byte version, int maxFrameLength, byte compression, byte features) {
+        this.version = version;
+        this.maxFrameLength = maxFrameLength;
+        this.compression = compression;
+        this.features = features;
+    }
+
+    public byte version() {
+        return version;
+    }
+
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public byte compression() {
+        return compression;
+    }
+
+    public boolean supports(byte feature) {
+        return (features & feature) != 0;
+    }
+
+    /**
+     * 服务端用：版本和帧长度取两边较小的，压缩算法按本端的偏好顺序取第一个双方都支持的，特性取交集
+     */
+    public Capabilities negotiate(Capabilities peer, byte[] compressionPreference) {
+        byte selected = 0;
+        for (byte algorithm : compressionPreference) {
+            if ((compression & peer.compression & algorithm) != 0) {
+                selected = algorithm;
+                break;
+            }
+        }
+        return new Capabilities((byte) Math.min(version, peer.version), Math.min(maxFrameLength, peer.maxFrameLength),
+                selected, (byte) (features & peer.features));
+    }
+
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        ByteBuf frame = alloc.ioBuffer(CustomFrame.HEADER_LENGTH + BODY_LENGTH);
+        frame.writeByte(CustomFrame.TYPE_HANDSHAKE);
+        frame.writeInt(BODY_LENGTH);
+        frame.writeByte(0);
+        frame.writeLong(0);
+        frame.writeByte(version);
+        frame.writeInt(maxFrameLength);
+        frame.writeByte(compression);
+        frame.writeByte(features);
+        return frame;
+    }
+
+    public static Capabilities decode(CustomFrame frame) {
+        if (frame.length() < BODY_LENGTH) {
+            throw new CorruptedFrameException("handshake body too short: " + frame.length());
+        }
+        ByteBuf body = frame.bodyContent();
+        return new Capabilities(body.getByte(0), body.getInt(1), body.getByte(5), body.getByte(6));
+    }
+
+    @Override
+    public String toString() {
+        return "Capabilities(version=" + version + ", maxFrameLength=" + maxFrameLength
+                + ", compression=" + compression + ", features=" + features + ")";
+    }
+}
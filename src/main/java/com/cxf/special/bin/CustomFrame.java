@@ -0,0 +1,106 @@
+package com.cxf.special.bin;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Created by cxf on 2019/1/13.
+ */
+
+/**
+ * CustomMsg的flyweight版本：直接包装解码器切出来的整帧（retainedSlice，和接收缓冲区共享内存），
+ * 帧格式是 type(1) + length(4) + flag(1) + requestId(8) + body。
+ *
+ * type/flag/length每次都直接从ByteBuf里读，不拷贝也不创建对象；body只有调用body()/bodyBytes()时才解码，
+ * 只看头部做路由、或者原样转发的消息不需要付出解码的代价。转发时直接写content()就是原始的字节，
+ * 写出去以后引用计数交给下游，自己不要再release。
+ *
+ * 和ByteBuf一样是引用计数的，用完要release（SimpleChannelInboundHandler会自动release）。
+ */
+public class CustomFrame extends DefaultByteBufHolder {
+
+    //普通消息
+    public static final byte TYPE_MESSAGE = 1;
+    //批量帧：body是若干个完整的普通帧首尾相连，头部的requestId字段放帧数
+    public static final byte TYPE_BATCH = 2;
+
+    //压缩能力通告：连接建立时双方各发一个，flag字段是支持的压缩算法的位掩码
+    public static final byte TYPE_COMPRESSION = 3;
+
+    //握手：连接上的第一帧，body是Capabilities
+    public static final byte TYPE_HANDSHAKE = 4;
+
+    //flag字段的低两位：body用哪种算法压缩，压缩过的body是 原始长度(4) + 压缩后的数据
+    public static final byte FLAG_SNAPPY = 0x01;
+    public static final byte FLAG_ZLIB = 0x02;
+    public static final byte FLAG_COMPRESSION_MASK = 0x03;
+    //心跳：body为空，服务端在I/O线程上直接用同一个requestId回一个心跳。
+    //flag从压缩开始就按位使用了，原来注释里0xAB表示心跳的写法会和压缩位冲突，所以单独占一位
+    public static final byte FLAG_HEARTBEAT = 0x10;
+
+    public static final int TYPE_OFFSET = 0;
+    public static final int LENGTH_OFFSET = 1;
+    public static final int FLAG_OFFSET = 5;
+    public static final int REQUEST_ID_OFFSET = 6;
+    public static final int HEADER_LENGTH = 14;
+
+    //body()解码过一次以后缓存起来
+    private String body;
+
+    public CustomFrame(ByteBuf frame) {
+        super(frame);
+    }
+
+    //类型  系统编号 0xAB 表示A系统，0xBC 表示B系统
+    public byte type() {
+        return content().getByte(content().readerIndex() + TYPE_OFFSET);
+    }
+
+    //信息标志  0xAB 表示心跳包    0xBC 表示超时包  0xCD 业务信息包
+    public byte flag() {
+        return content().getByte(content().readerIndex() + FLAG_OFFSET);
+    }
+
+    //主题信息的长度（UTF-8字节数）
+    public int length() {
+        return content().getInt(content().readerIndex() + LENGTH_OFFSET);
+    }
+
+    public long requestId() {
+        return content().getLong(content().readerIndex() + REQUEST_ID_OFFSET);
+    }
+
+    /**
+     * body部分的切片，和帧共享内存和引用计数，不要单独release
+     */
+    public ByteBuf bodyContent() {
+        return content().slice(content().readerIndex() + HEADER_LENGTH, length());
+    }
+
+    public String body() {
+        if (body == null) {
+            body = content().toString(content().readerIndex() + HEADER_LENGTH, length(), CharsetUtil.UTF_8);
+        }
+        return body;
+    }
+
+    public byte[] bodyBytes() {
+        return ByteBufUtil.getBytes(content(), content().readerIndex() + HEADER_LENGTH, length());
+    }
+
+    public CustomMsg toMsg() {
+        return new CustomMsg(body(), requestId(), flag());
+    }
+
+    @Override
+    public CustomFrame replace(ByteBuf content) {
+        return new CustomFrame(content);
+    }
+
+    @Override
+    public String toString() {
+        return "CustomFrame(type=" + type() + ", flag=" + flag() + ", length=" + length() + ", requestId=" + requestId() + ")";
+    }
+}
@@ -26,5 +26,19 @@ public class CustomMsg {
     //主题信息
     private String body;
 
+    //请求ID，服务端的响应带回同一个ID，客户端据此找到对应的请求，所以响应可以乱序；0表示不需要响应
+    private long requestId;
+
+    //信息标志，CustomFrame.FLAG_*的组合，比如FLAG_HEARTBEAT
+    private byte flag;
+
+    public CustomMsg(String body) {
+        this.body = body;
+    }
+
+    public CustomMsg(String body, long requestId) {
+        this.body = body;
+        this.requestId = requestId;
+    }
 
 }
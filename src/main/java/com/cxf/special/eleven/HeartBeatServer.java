@@ -1,17 +1,17 @@
 package com.cxf.special.eleven;
 
 import com.cxf.special.handler.HeartBeatServerHandler;
+import com.cxf.special.handler.HeartbeatFrameHandler;
+import com.cxf.special.handler.IdleDetector;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
-import io.netty.handler.timeout.IdleStateHandler;
 
 import java.util.concurrent.TimeUnit;
 
@@ -20,6 +20,14 @@ import java.util.concurrent.TimeUnit;
  */
 public class HeartBeatServer {
 
+    //-DidleClose=true 时空闲连接直接关掉，否则发IdleStateEvent给HeartBeatServerHandler
+    private static final boolean IDLE_CLOSE = Boolean.getBoolean("idleClose");
+
+    //所有连接共用，每个EventLoop一个时间轮，代替每个连接一个IdleStateHandler
+    private final IdleDetector idleDetector = new IdleDetector(5, TimeUnit.SECONDS, IDLE_CLOSE);
+    //一字节的ping/pong，在字符串编解码之前处理掉
+    private final HeartbeatFrameHandler heartbeatFrameHandler = new HeartbeatFrameHandler();
+
     private int port;
 
     public HeartBeatServer(int port) {
@@ -27,16 +35,17 @@ public class HeartBeatServer {
     }
 
     public void start() {
-        EventLoopGroup boss = new NioEventLoopGroup(1);
-        EventLoopGroup worker = new NioEventLoopGroup();
+        EventLoopGroup boss = Transports.newEventLoopGroup(1);
+        EventLoopGroup worker = Transports.newEventLoopGroup();
         try {
 
             ServerBootstrap sbs = new ServerBootstrap().group(boss, worker)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(Transports.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline().addLast(new IdleStateHandler(5, 0, 0, TimeUnit.SECONDS))
+                            socketChannel.pipeline().addLast(idleDetector.newHandler())
+                                    .addLast(heartbeatFrameHandler)
                                     .addLast("decoder", new StringDecoder())
                                     .addLast("encoder", new StringEncoder())
                                     .addLast(new HeartBeatServerHandler());
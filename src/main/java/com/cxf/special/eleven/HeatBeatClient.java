@@ -1,60 +1,188 @@
 package com.cxf.special.eleven;
 
 import com.cxf.special.handler.HeartBeatClientHandler;
+import com.cxf.special.handler.HeartbeatFrameHandler;
+import com.cxf.special.specialheartbeat.ReconnectPolicy;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.IdleStateHandler;
 
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by cxf on 2019/1/2.
  */
+
+/**
+ * 断线重连用状态机，不再在finally里递归调用connect()（每次重连栈多一层、新建一个EventLoopGroup、sync()阻塞）：
+ *
+ *   NEW ---> start() ---> CONNECTING ---> 连接成功 ---> ACTIVE ---> 连接断开 ---> BACKOFF
+ *                              |                                                     |
+ *                              +-------> 连接失败 -----------------------------------+---> 等ReconnectPolicy给的时间 ---> CONNECTING
+ *
+ * 整个客户端只有一个EventLoopGroup（一个线程），状态只在这个EventLoop上改，不用加锁；
+ * 重连是schedule到这个EventLoop上的任务，不阻塞任何线程。
+ * 对外提供连接次数、成功次数和累计断线时间，其他线程可以读；断线时间从start()开始算。
+ */
 public class HeatBeatClient {
 
+    public enum State {
+        NEW, CONNECTING, ACTIVE, BACKOFF, STOPPED
+    }
+
+    private final EventLoopGroup group = Transports.newEventLoopGroup(1);
+    private final EventLoop loop = group.next();
+    private final Bootstrap bootstrap;
+    private final ReconnectPolicy policy;
+    private final HeartbeatFrameHandler heartbeatFrameHandler = new HeartbeatFrameHandler();
+
+    private volatile State state = State.NEW;
+    private Channel channel;
+    //连续失败次数，用来算退避时间
+    private int failures;
+
+    private volatile long attempts;
+    private volatile long successes;
+    private volatile long disconnectedNanos;
+    //这一次断线开始的时间，连着的时候和start()之前是0
+    private volatile long disconnectedSince;
+
+    public HeatBeatClient(String host, int port) {
+        this(host, port, ReconnectPolicy.DEFAULT);
+    }
+
+    public HeatBeatClient(String host, int port, ReconnectPolicy policy) {
+        this.policy = policy;
+        //所有连接都注册到同一个EventLoop上，连接的回调和状态切换在同一个线程
+        this.bootstrap = new Bootstrap()
+                .group(loop)
+                .channel(Transports.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .remoteAddress(host, port)
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline p = ch.pipeline();
+                        //ping由HeartBeatClientHandler自己按链路的情况安排，不再用IdleStateHandler固定间隔触发；
+                        //ping/pong是一字节的二进制帧，由最前面的HeartbeatFrameHandler收发，不经过字符串编解码
+                        p.addLast("heartbeat", heartbeatFrameHandler);
+                        p.addLast("decoder", new StringDecoder());
+                        p.addLast("encoder", new StringEncoder());
+                        p.addLast(new HeartBeatClientHandler());
+                    }
+                });
+    }
 
-    public void connect(int port, String host) throws Exception {
-        // Configure the client.
-        ChannelFuture future = null;
-        EventLoopGroup group = new NioEventLoopGroup();
-        try {
-            Bootstrap b = new Bootstrap();
-            b.group(group)
-                    .channel(NioSocketChannel.class)
-                    .option(ChannelOption.TCP_NODELAY, true)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        public void initChannel(SocketChannel ch) throws Exception {
-                            ChannelPipeline p = ch.pipeline();
-                            p.addLast("ping", new IdleStateHandler(0, 4, 0, TimeUnit.SECONDS));
-                            p.addLast("decoder", new StringDecoder());
-                            p.addLast("encoder", new StringEncoder());
-                            p.addLast(new HeartBeatClientHandler());
-                        }
-                    });
-
-            future = b.connect(host, port).sync();
-            future.channel().closeFuture().sync();
-        } finally {
-            //简单的断线重连
-            if (null != future) {
-                if (future.channel() != null && future.channel().isOpen()) {
-                    future.channel().close();
+    public void start() {
+        disconnectedSince = System.nanoTime();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    /**
+     * 关掉当前连接，不再重连，释放EventLoopGroup
+     */
+    public void stop() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                state = State.STOPPED;
+                if (channel != null) {
+                    channel.close();
                 }
+                group.shutdownGracefully();
             }
-            System.out.println("准备重连");
-            connect(port, host);
-            System.out.println("重连成功");
+        });
+    }
 
+    public State state() {
+        return state;
+    }
+
+    public long attempts() {
+        return attempts;
+    }
+
+    public long successes() {
+        return successes;
+    }
+
+    /**
+     * 累计断线时间，包括正在断着的这一段
+     */
+    public long disconnectedMillis() {
+        long total = disconnectedNanos;
+        long since = disconnectedSince;
+        if (since != 0) {
+            total += System.nanoTime() - since;
         }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    private void connect() {
+        if (state == State.STOPPED) {
+            return;
+        }
+        state = State.CONNECTING;
+        attempts++;
+        bootstrap.connect().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    connected(future.channel());
+                } else {
+                    System.out.println("连接失败: " + future.cause());
+                    backoff();
+                }
+            }
+        });
+    }
+
+    private void connected(Channel ch) {
+        if (state == State.STOPPED) {
+            ch.close();
+            return;
+        }
+        state = State.ACTIVE;
+        channel = ch;
+        successes++;
+        failures = 0;
+        disconnectedNanos += System.nanoTime() - disconnectedSince;
+        disconnectedSince = 0;
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                channel = null;
+                disconnectedSince = System.nanoTime();
+                System.out.println("连接断开");
+                backoff();
+            }
+        });
+    }
+
+    private void backoff() {
+        if (state == State.STOPPED) {
+            return;
+        }
+        state = State.BACKOFF;
+        long delay = policy.delayMillis(failures++);
+        System.out.println("准备重连，" + delay + "ms后进行第" + failures + "次重连");
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -70,7 +198,14 @@ public class HeatBeatClient {
                 // 采用默认值
             }
         }
-        new HeatBeatClient().connect(port, "127.0.0.1");
+        HeatBeatClient client = new HeatBeatClient("127.0.0.1", port);
+        client.start();
+        //每10秒打印一次连接的统计
+        for (;;) {
+            Thread.sleep(10000);
+            System.out.println("state=" + client.state() + ", attempts=" + client.attempts()
+                    + ", successes=" + client.successes() + ", disconnected=" + client.disconnectedMillis() + "ms");
+        }
     }
 
 
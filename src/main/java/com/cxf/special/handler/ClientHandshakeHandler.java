@@ -0,0 +1,116 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.Capabilities;
+import com.cxf.special.bin.CustomFrame;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Created by cxf on 2019/1/16.
+ */
+
+/**
+ * 客户端握手：连接建立后先发本端的Capabilities，收到服务端的协商结果以后在自己后面装上
+ * CustomBatchEncoder（双方都支持批量时）、CustomCompressionHandler、CustomEncoder，然后把自己移除。
+ *
+ * 握手完成之前不能发别的帧，连接的HANDSHAKE属性里的Future完成以后才算连接可用。
+ * 超时等不到回复（服务端是不认识握手的老版本，或者回复太晚）时握手失败并关闭连接，和连接断开一样处理。
+ * 不能只在客户端退回最基本的编解码：回复只是来晚了的话，服务端已经按协商结果装上了压缩和批量的handler，
+ * 之后发来的压缩帧客户端解不了，晚到的握手帧也会漏到后面的handler里。
+ */
+public class ClientHandshakeHandler extends ChannelInboundHandlerAdapter {
+
+    public static final AttributeKey<Promise<Capabilities>> HANDSHAKE = AttributeKey.valueOf("handshake");
+
+    private final Capabilities local;
+    private final int compressThreshold;
+    private final int batchBytes;
+    private final long batchLingerMicros;
+    private final long timeoutMillis;
+
+    private Promise<Capabilities> handshake;
+    private ScheduledFuture<?> timeout;
+
+    /**
+     * @param batchBytes 大于0时通告支持批量帧，协商成功后按这个大小攒批
+     */
+    public ClientHandshakeHandler(int maxFrameLength, byte[] compression, int compressThreshold,
+                                  int batchBytes, long batchLingerMicros, long timeoutMillis) {
+        this.local = new Capabilities(Capabilities.VERSION, maxFrameLength, CustomCompressionHandler.mask(compression),
+                batchBytes > 0 ? Capabilities.FEATURE_BATCH : 0);
+        this.compressThreshold = compressThreshold;
+        this.batchBytes = batchBytes;
+        this.batchLingerMicros = batchLingerMicros;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        handshake = ctx.executor().newPromise();
+        ctx.channel().attr(HANDSHAKE).set(handshake);
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        ctx.writeAndFlush(local.encode(ctx.alloc()));
+        timeout = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("no handshake reply in " + timeoutMillis + "ms, closing");
+                handshake.tryFailure(new TimeoutException("no handshake reply in " + timeoutMillis + "ms"));
+                ctx.close();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CustomFrame) || ((CustomFrame) msg).type() != CustomFrame.TYPE_HANDSHAKE) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CustomFrame frame = (CustomFrame) msg;
+        try {
+            timeout.cancel(false);
+            complete(ctx, Capabilities.decode(frame));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        handshake.tryFailure(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    private void complete(ChannelHandlerContext ctx, Capabilities agreed) {
+        //addAfter都加在自己后面，所以倒着加：最后的结果是 batch -> compression -> encoder
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), null, new CustomEncoder());
+        if (agreed.compression() != 0) {
+            pipeline.addAfter(ctx.name(), null,
+                    CustomCompressionHandler.negotiated(agreed.compression(), compressThreshold, agreed.maxFrameLength()));
+        }
+        if (agreed.supports(Capabilities.FEATURE_BATCH)) {
+            //批量帧的body不超过对方能收的帧长度
+            int maxBytes = Math.min(batchBytes, agreed.maxFrameLength() - CustomFrame.HEADER_LENGTH);
+            pipeline.addAfter(ctx.name(), null,
+                    new CustomBatchEncoder(maxBytes, batchLingerMicros, TimeUnit.MICROSECONDS));
+        }
+        pipeline.remove(this);
+        handshake.trySuccess(agreed);
+    }
+}
@@ -0,0 +1,43 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.CustomFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Created by cxf on 2019/1/14.
+ */
+
+/**
+ * 放在CustomDecoder.frames()后面：TYPE_BATCH的帧拆成里面的一个个CustomFrame，每个都是批量帧的retainedSlice，
+ * 不拷贝；普通帧原样往后传。后面的handler看不出消息是不是批量发过来的。
+ */
+public class CustomBatchDecoder extends MessageToMessageDecoder<CustomFrame> {
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, CustomFrame frame, List<Object> out) throws Exception {
+        if (frame.type() != CustomFrame.TYPE_BATCH) {
+            //MessageToMessageDecoder会release输入，原样传下去要先retain
+            out.add(frame.retain());
+            return;
+        }
+        ByteBuf batch = frame.content();
+        int end = batch.readerIndex() + CustomFrame.HEADER_LENGTH + frame.length();
+        int offset = batch.readerIndex() + CustomFrame.HEADER_LENGTH;
+        while (offset < end) {
+            if (end - offset < CustomFrame.HEADER_LENGTH) {
+                throw new CorruptedFrameException("truncated frame header in batch at " + offset);
+            }
+            int length = CustomFrame.HEADER_LENGTH + batch.getInt(offset + CustomFrame.LENGTH_OFFSET);
+            if (length < CustomFrame.HEADER_LENGTH || length > end - offset) {
+                throw new CorruptedFrameException("frame length " + length + " exceeds batch at " + offset);
+            }
+            out.add(new CustomFrame(batch.retainedSlice(offset, length)));
+            offset += length;
+        }
+    }
+}
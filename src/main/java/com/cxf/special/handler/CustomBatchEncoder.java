@@ -0,0 +1,149 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.CustomFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by cxf on 2019/1/14.
+ */
+
+/**
+ * 客户端的自动攒批：放在CustomEncoder前面（靠近head），收到的是编码好的一个个完整帧。
+ *
+ * 帧先攒在一个CompositeByteBuf里（只是挂上去，不拷贝），满足下面任意一个条件就包一个TYPE_BATCH的头一起写出去：
+ *   1.攒的字节数达到maxBytes
+ *   2.flush()之后过了linger时间（比如200us），这段时间内后面的flush()不会再触发系统调用
+ * 只攒到一帧时不加批量头，原样写出。加上新的一帧会超过maxBytes时先把已经攒的写出去，
+ * 所以批量帧的body不会超过maxBytes（单个帧本身超过maxBytes时单独发）。
+ *
+ * 每一帧原来的promise在整批写完后一起通知。一个连接一个实例，只在它的EventLoop上访问。
+ */
+public class CustomBatchEncoder extends ChannelOutboundHandlerAdapter {
+
+    private final int maxBytes;
+    private final long lingerNanos;
+
+    private CompositeByteBuf batch;
+    private final List<ChannelPromise> promises = new ArrayList<ChannelPromise>();
+    private ScheduledFuture<?> lingerTask;
+
+    public CustomBatchEncoder(int maxBytes, long linger, TimeUnit unit) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes + " (expected: > 0)");
+        }
+        this.maxBytes = maxBytes;
+        this.lingerNanos = unit.toNanos(linger);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf frame = (ByteBuf) msg;
+        if (batch != null && batch.readableBytes() + frame.readableBytes() > maxBytes) {
+            writeBatch(ctx);
+        }
+        if (batch == null) {
+            //组件数不设上限，超过默认的16个时CompositeByteBuf会把组件合并（拷贝）成一个
+            batch = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+        }
+        batch.addComponent(true, frame);
+        promises.add(promise);
+        if (batch.readableBytes() >= maxBytes) {
+            writeBatch(ctx);
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        if (batch == null) {
+            ctx.flush();
+            return;
+        }
+        if (lingerTask == null) {
+            lingerTask = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lingerTask = null;
+                    writeBatch(ctx);
+                    ctx.flush();
+                }
+            }, lingerNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        //关闭前把攒着的发出去
+        writeBatch(ctx);
+        ctx.flush();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        cancelLinger();
+        if (batch != null) {
+            batch.release();
+            batch = null;
+            IllegalStateException cause = new IllegalStateException("batch discarded: handler removed");
+            for (ChannelPromise p : promises) {
+                p.tryFailure(cause);
+            }
+            promises.clear();
+        }
+    }
+
+    private void writeBatch(ChannelHandlerContext ctx) {
+        if (batch == null) {
+            return;
+        }
+        cancelLinger();
+        CompositeByteBuf frames = batch;
+        batch = null;
+        int count = promises.size();
+        if (count > 1) {
+            ByteBuf header = ctx.alloc().ioBuffer(CustomFrame.HEADER_LENGTH);
+            header.writeByte(CustomFrame.TYPE_BATCH);
+            header.writeInt(frames.readableBytes());
+            header.writeByte(0);
+            header.writeLong(count);
+            frames.addComponent(true, 0, header);
+        }
+        final ChannelPromise[] notify = promises.toArray(new ChannelPromise[count]);
+        promises.clear();
+        ctx.write(frames).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelPromise p : notify) {
+                    if (future.isSuccess()) {
+                        p.trySuccess();
+                    } else {
+                        p.tryFailure(future.cause());
+                    }
+                }
+            }
+        });
+    }
+
+    private void cancelLinger() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.CustomFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Created by cxf on 2019/1/15.
+ */
+
+/**
+ * 按帧压缩，用帧头里的flag字段标记body的压缩算法（FLAG_SNAPPY / FLAG_ZLIB）：
+ *   1.连接建立时发一个TYPE_COMPRESSION帧，flag是自己支持的算法；收到对方的通告后，
+ *     按自己的偏好顺序选第一个双方都支持的算法。对方通告之前、或者没有共同的算法时都不压缩
+ *   2.出站：body不小于threshold字节的普通帧才压缩，小帧压缩省不了多少带宽，白费CPU；压缩后没有变小的也按原样发
+ *   3.入站：带压缩标记的帧解压成普通帧再往后传，不管本端选的是什么算法，自己通告过的算法都能解
+ *
+ * pipeline里放在CustomBatchDecoder之后、CustomEncoder之前：入站拿到的是单个CustomFrame，出站拿到的是编码好的帧。
+ *
+ * Snappy用netty-all自带的io.netty.handler.codec.compression.Snappy，直接在ByteBuf上压缩。
+ * netty的zlib只有流式的编解码handler（JdkZlibEncoder等），不能按帧用，所以zlib直接用JDK的Deflater/Inflater，
+ * 每个连接一对，reset()以后复用。
+ */
+public class CustomCompressionHandler extends ChannelDuplexHandler {
+
+    private final byte[] preference;
+    private final byte supported;
+    private final int threshold;
+    private final int maxFrameLength;
+
+    //对方通告之前为0，不压缩
+    private byte selected;
+    //接受的连接在initChannel时已经是active的，handlerAdded和channelActive都会走到advertise()，只发一次
+    private boolean advertised;
+
+    private final Snappy snappy = new Snappy();
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * @param preference     本端支持的算法，按优先顺序，FLAG_SNAPPY / FLAG_ZLIB
+     * @param threshold      body达到这么多字节才压缩
+     * @param maxFrameLength 解压后的body不能超过这个长度，防止很小的帧解压出巨大的数据
+     */
+    public CustomCompressionHandler(byte[] preference, int threshold, int maxFrameLength) {
+        byte mask = 0;
+        for (byte algorithm : preference) {
+            if (algorithm != CustomFrame.FLAG_SNAPPY && algorithm != CustomFrame.FLAG_ZLIB) {
+                throw new IllegalArgumentException("unknown compression: " + algorithm);
+            }
+            mask |= algorithm;
+        }
+        this.preference = preference.clone();
+        this.supported = mask;
+        this.threshold = threshold;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 握手时已经协商好了算法，不再发TYPE_COMPRESSION通告，一开始就按algorithm压缩
+     */
+    public static CustomCompressionHandler negotiated(byte algorithm, int threshold, int maxFrameLength) {
+        CustomCompressionHandler handler = new CustomCompressionHandler(new byte[]{algorithm}, threshold, maxFrameLength);
+        handler.selected = algorithm;
+        handler.advertised = true;
+        return handler;
+    }
+
+    /**
+     * 算法列表转成flag里用的位掩码
+     */
+    public static byte mask(byte[] algorithms) {
+        byte mask = 0;
+        for (byte algorithm : algorithms) {
+            mask |= algorithm;
+        }
+        return mask;
+    }
+
+    /**
+     * "snappy,zlib"这样的配置转成算法列表
+     */
+    public static byte[] parse(String algorithms) {
+        if (algorithms == null || algorithms.trim().isEmpty()) {
+            return new byte[0];
+        }
+        String[] names = algorithms.split(",");
+        byte[] result = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if ("snappy".equalsIgnoreCase(name)) {
+                result[i] = CustomFrame.FLAG_SNAPPY;
+            } else if ("zlib".equalsIgnoreCase(name)) {
+                result[i] = CustomFrame.FLAG_ZLIB;
+            } else {
+                throw new IllegalArgumentException("unknown compression: " + name);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        //连接建立以后才加进pipeline的，channelActive已经错过了
+        if (ctx.channel().isActive()) {
+            advertise(ctx);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        advertise(ctx);
+        ctx.fireChannelActive();
+    }
+
+    private void advertise(ChannelHandlerContext ctx) {
+        if (advertised) {
+            return;
+        }
+        advertised = true;
+        ByteBuf advertise = ctx.alloc().ioBuffer(CustomFrame.HEADER_LENGTH);
+        advertise.writeByte(CustomFrame.TYPE_COMPRESSION);
+        advertise.writeInt(0);
+        advertise.writeByte(supported);
+        advertise.writeLong(0);
+        ctx.writeAndFlush(advertise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CustomFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CustomFrame frame = (CustomFrame) msg;
+        if (frame.type() == CustomFrame.TYPE_COMPRESSION) {
+            select(frame.flag());
+            frame.release();
+            return;
+        }
+        int algorithm = frame.flag() & CustomFrame.FLAG_COMPRESSION_MASK;
+        if (algorithm == 0) {
+            ctx.fireChannelRead(frame);
+            return;
+        }
+        try {
+            ctx.fireChannelRead(new CustomFrame(decompress(ctx, frame, algorithm)));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (selected != 0 && msg instanceof ByteBuf) {
+            ByteBuf frame = (ByteBuf) msg;
+            int start = frame.readerIndex();
+            int length = frame.getInt(start + CustomFrame.LENGTH_OFFSET);
+            if (frame.getByte(start + CustomFrame.TYPE_OFFSET) == CustomFrame.TYPE_MESSAGE && length >= threshold) {
+                ByteBuf compressed = compress(ctx, frame, length);
+                if (compressed != null) {
+                    frame.release();
+                    msg = compressed;
+                }
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    private void select(byte peerSupported) {
+        for (byte algorithm : preference) {
+            if ((peerSupported & algorithm) != 0) {
+                selected = algorithm;
+                return;
+            }
+        }
+        selected = 0;
+    }
+
+    /**
+     * @return 压缩后的整帧，没有变小时返回null
+     */
+    private ByteBuf compress(ChannelHandlerContext ctx, ByteBuf frame, int length) {
+        int start = frame.readerIndex();
+        ByteBuf out = ctx.alloc().ioBuffer(CustomFrame.HEADER_LENGTH + 4 + length);
+        out.writeBytes(frame, start, CustomFrame.HEADER_LENGTH);
+        out.writeInt(length);
+        ByteBuf body = frame.slice(start + CustomFrame.HEADER_LENGTH, length);
+        if (selected == CustomFrame.FLAG_SNAPPY) {
+            snappy.encode(body, out, length);
+            snappy.reset();
+        } else {
+            deflate(body, out);
+        }
+        int compressedLength = out.readableBytes() - CustomFrame.HEADER_LENGTH;
+        if (compressedLength >= length) {
+            out.release();
+            return null;
+        }
+        out.setInt(CustomFrame.LENGTH_OFFSET, compressedLength);
+        out.setByte(CustomFrame.FLAG_OFFSET, (frame.getByte(start + CustomFrame.FLAG_OFFSET) & ~CustomFrame.FLAG_COMPRESSION_MASK) | selected);
+        return out;
+    }
+
+    private ByteBuf decompress(ChannelHandlerContext ctx, CustomFrame frame, int algorithm) throws Exception {
+        if ((algorithm & supported) == 0 || algorithm == CustomFrame.FLAG_COMPRESSION_MASK) {
+            throw new CorruptedFrameException("unsupported compression: " + algorithm);
+        }
+        ByteBuf in = frame.content();
+        int start = in.readerIndex();
+        int originalLength = in.getInt(start + CustomFrame.HEADER_LENGTH);
+        if (originalLength < 0 || originalLength > maxFrameLength) {
+            throw new TooLongFrameException("decompressed length " + originalLength + " exceeds " + maxFrameLength);
+        }
+        ByteBuf compressed = in.slice(start + CustomFrame.HEADER_LENGTH + 4, frame.length() - 4);
+        //maxCapacity也限制住，数据和声明的长度不符时解压会失败，而不是一直扩容
+        ByteBuf out = ctx.alloc().buffer(CustomFrame.HEADER_LENGTH + originalLength, CustomFrame.HEADER_LENGTH + originalLength);
+        try {
+            out.writeBytes(in, start, CustomFrame.HEADER_LENGTH);
+            out.setInt(CustomFrame.LENGTH_OFFSET, originalLength);
+            out.setByte(CustomFrame.FLAG_OFFSET, in.getByte(start + CustomFrame.FLAG_OFFSET) & ~CustomFrame.FLAG_COMPRESSION_MASK);
+            if (algorithm == CustomFrame.FLAG_SNAPPY) {
+                snappy.decode(compressed, out);
+                snappy.reset();
+            } else {
+                inflate(compressed, out, originalLength);
+            }
+            if (out.readableBytes() != CustomFrame.HEADER_LENGTH + originalLength) {
+                throw new CorruptedFrameException("decompressed " + (out.readableBytes() - CustomFrame.HEADER_LENGTH)
+                        + " bytes, expected " + originalLength);
+            }
+            return out;
+        } catch (Exception e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private void deflate(ByteBuf body, ByteBuf out) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        //JDK 8的Deflater只收byte[]
+        if (body.hasArray()) {
+            deflater.setInput(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+        } else {
+            byte[] input = new byte[body.readableBytes()];
+            body.getBytes(body.readerIndex(), input);
+            deflater.setInput(input);
+        }
+        deflater.finish();
+        byte[] chunk = new byte[Math.min(8192, body.readableBytes())];
+        //压缩后不会比原来还大才有意义，输出超过原长度就不用再压了
+        int limit = body.readableBytes();
+        while (!deflater.finished() && out.readableBytes() - CustomFrame.HEADER_LENGTH - 4 < limit) {
+            int n = deflater.deflate(chunk);
+            out.writeBytes(chunk, 0, n);
+        }
+        deflater.reset();
+    }
+
+    private void inflate(ByteBuf compressed, ByteBuf out, int originalLength) throws DataFormatException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (compressed.hasArray()) {
+            inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.readerIndex(), compressed.readableBytes());
+        } else {
+            byte[] input = new byte[compressed.readableBytes()];
+            compressed.getBytes(compressed.readerIndex(), input);
+            inflater.setInput(input);
+        }
+        try {
+            if (out.hasArray()) {
+                int n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), originalLength);
+                out.writerIndex(out.writerIndex() + n);
+            } else {
+                byte[] output = new byte[originalLength];
+                int n = inflater.inflate(output);
+                out.writeBytes(output, 0, n);
+            }
+            if (!inflater.finished()) {
+                throw new CorruptedFrameException("zlib body longer than " + originalLength + " bytes");
+            }
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -1,12 +1,74 @@
 package com.cxf.special.handler;
 
+import com.cxf.special.bin.CustomFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Created by cxf on 2019/1/2.
  */
 public class CustomDecoder extends LengthFieldBasedFrameDecoder {
 
+    //所有CustomDecoder累计：攒半包时拷贝的字节数，和以切片方式交给后面handler的帧字节数
+    private static final LongAdder BYTES_COPIED = new LongAdder();
+    private static final LongAdder BYTES_SLICED = new LongAdder();
+
+    /**
+     * 默认的MERGE_CUMULATOR，加上拷贝字节数的统计：
+     * 剩下半包时，新读到的数据要拷贝到cumulation后面；cumulation容量不够、或者被切出去的帧还引用着时，
+     * 原有的数据也要再拷贝一次
+     */
+    private static final Cumulator COUNTING_MERGE_CUMULATOR = new Cumulator() {
+        @Override
+        public ByteBuf cumulate(ByteBufAllocator alloc, ByteBuf cumulation, ByteBuf in) {
+            long copied = in.readableBytes();
+            if (cumulation.refCnt() > 1 || cumulation.isReadOnly() || cumulation.writableBytes() < in.readableBytes()) {
+                copied += cumulation.readableBytes();
+            }
+            BYTES_COPIED.add(copied);
+            return MERGE_CUMULATOR.cumulate(alloc, cumulation, in);
+        }
+    };
+
+    /**
+     * 不拷贝的cumulator：半包和新读到的数据都作为组件挂在CompositeByteBuf上。
+     *
+     * netty自带的COMPOSITE_CUMULATOR在cumulation的引用计数大于1（之前切出去的帧还没释放）时会退回到拷贝，
+     * 因为往被切片引用着的composite上加组件、丢弃已读组件会让切片的下标错乱。
+     * 这里换一种做法：不动旧的cumulation，新建一个composite，只把旧cumulation里还没读的部分按底层buffer拆成几段，
+     * 每段retain后挂上去，再release旧的cumulation，也不用拷贝。
+     * 不能把旧的composite整个当作一个组件挂上去：那样每次半包都多套一层，已经读完的buffer也一直被外层引用着，
+     * ByteToMessageDecoder只在引用计数为1时丢弃已读部分，业务线程一直持有帧的时候内存和嵌套层数会一直涨。
+     * 组件数不设上限，否则超过16个时CompositeByteBuf会自己合并组件（拷贝）。
+     */
+    private static final Cumulator SLICING_CUMULATOR = new Cumulator() {
+        @Override
+        public ByteBuf cumulate(ByteBufAllocator alloc, ByteBuf cumulation, ByteBuf in) {
+            CompositeByteBuf composite;
+            if (cumulation instanceof CompositeByteBuf && cumulation.refCnt() == 1) {
+                composite = (CompositeByteBuf) cumulation;
+            } else if (cumulation instanceof CompositeByteBuf) {
+                composite = alloc.compositeBuffer(Integer.MAX_VALUE);
+                for (ByteBuf piece : ((CompositeByteBuf) cumulation).decompose(
+                        cumulation.readerIndex(), cumulation.readableBytes())) {
+                    composite.addComponent(true, piece.retain());
+                }
+                cumulation.release();
+            } else {
+                //普通buffer只有一层，直接转移引用
+                composite = alloc.compositeBuffer(Integer.MAX_VALUE);
+                composite.addComponent(true, cumulation);
+            }
+            composite.addComponent(true, in);
+            return composite;
+        }
+    };
+
 
     private byte lenHead;//1
     private byte lenStart; //1
@@ -16,6 +78,8 @@ public class CustomDecoder extends LengthFieldBasedFrameDecoder {
     private int totalLen = lenHead+lenLen+lenValue+1;
     private int index = totalLen-lenStart-lenLen-lenValue;
     private int index0 = 2;
+    //为true时不跳过头部，整帧包装成CustomFrame交给后面的handler
+    private boolean frames;
 
 
 
@@ -48,7 +112,55 @@ public class CustomDecoder extends LengthFieldBasedFrameDecoder {
         this.index0 = index0;
         this.lenStart = lenStart;
         this.lenLen = lenLen;
+        setCumulator(COUNTING_MERGE_CUMULATOR);
+    }
+
+    /**
+     * 输出CustomFrame的解码器：头部保留在帧里，type/flag/length按需读取，body按需解码
+     */
+    public static CustomDecoder frames(int maxFrameLength) {
+        return frames(maxFrameLength, false);
+    }
+
+    /**
+     * @param maxFrameLength 帧长度上限，长度域一读出来超过上限就抛TooLongFrameException并丢弃这一帧（failFast），
+     *                       不会为了一个超大的帧一直攒数据
+     * @param copyFree       为true时用SLICING_CUMULATOR：一帧分成很多个TCP段到达时不再反复拷贝、扩容cumulation，
+     *                       一次读到的所有完整帧都是cumulation的retainedSlice。适合大帧，小帧跨组件读头部会慢一点
+     */
+    public static CustomDecoder frames(int maxFrameLength, boolean copyFree) {
+        //长度域之后还有flag和requestId，lengthAdjustment = 14 - 1 - 4 = 9
+        CustomDecoder decoder = new CustomDecoder(maxFrameLength, (byte) CustomFrame.LENGTH_OFFSET, (byte) 4,
+                (byte) (CustomFrame.HEADER_LENGTH - CustomFrame.LENGTH_OFFSET - 4), (byte) 0, (byte) 1);
+        decoder.frames = true;
+        if (copyFree) {
+            decoder.setCumulator(SLICING_CUMULATOR);
+        }
+        return decoder;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        Object frame = super.decode(ctx, in);
+        if (frames && frame != null) {
+            //父类切出来的已经是retainedSlice，直接包装，不拷贝
+            return new CustomFrame((ByteBuf) frame);
+        }
+        return frame;
+    }
+
+    @Override
+    protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        BYTES_SLICED.add(length);
+        return super.extractFrame(ctx, buffer, index, length);
+    }
+
+    public static long bytesCopied() {
+        return BYTES_COPIED.sum();
+    }
 
+    public static long bytesSliced() {
+        return BYTES_SLICED.sum();
     }
 
     //这里实际上是重写了LengthFieldBasedFrameDecoder的decode方法，而不是ByteToMessageDecoder
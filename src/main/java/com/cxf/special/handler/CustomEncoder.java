@@ -1,23 +1,114 @@
 package com.cxf.special.handler;
 
+import com.cxf.special.bin.CustomFrame;
 import com.cxf.special.bin.CustomMsg;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
-import java.nio.charset.Charset;
-
 /**
  * Created by cxf on 2019/1/2.
  */
+
+/**
+ * 帧格式：type(1) + length(4) + flag(1) + requestId(8) + body，length是body按UTF-8编码后的字节数。
+ *
+ * 编码时不经过body.getBytes()：先在length的位置占4个字节，UTF-8直接写进输出的ByteBuf，写完再把实际字节数回填。
+ * 输出ByteBuf的初始大小用"每个字符平均几个字节"的估计值算，估计值按这个连接上编码过的消息调整，
+ * 纯ASCII的消息一次分配正好够用，中文多的连接估计值会升到接近3。
+ */
 public class CustomEncoder extends MessageToByteEncoder<CustomMsg> {
+
+    static final byte TYPE = CustomFrame.TYPE_MESSAGE;
+
+    //每个字符编码后的平均字节数，1到3之间；一个连接一个编码器实例，只在它的EventLoop上访问
+    private float bytesPerChar = 1f;
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, CustomMsg msg, boolean preferDirect) throws Exception {
+        String body = msg.getBody();
+        int capacity = CustomFrame.HEADER_LENGTH + (body == null ? 0 : (int) Math.ceil(body.length() * bytesPerChar));
+        if (preferDirect) {
+            return ctx.alloc().ioBuffer(capacity);
+        } else {
+            return ctx.alloc().heapBuffer(capacity);
+        }
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, CustomMsg msg, ByteBuf out) throws Exception {
         if(msg == null) throw new Exception("msg is null");
         String body = msg.getBody();
-        out.writeByte((byte) 1);
-        out.writeInt(body.length());
-        out.writeByte((byte)0);
-        out.writeBytes(body.getBytes(Charset.forName("utf-8")));
+        if (body == null) {
+            body = "";
+        }
+        out.writeByte(TYPE);
+        //长度先占位，写完body再回填
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(msg.getFlag());
+        out.writeLong(msg.getRequestId());
+        int length = writeUtf8(out, body);
+        out.setInt(lengthIndex, length);
+        if (body.length() > 0) {
+            updateEstimate((float) length / body.length());
+        }
+    }
+
+    /**
+     * 估计值变大时马上跟上，避免后面的消息都要扩容；变小时慢慢降，偶尔来一条ASCII消息不会让估计值掉下去
+     */
+    private void updateEstimate(float ratio) {
+        if (ratio > bytesPerChar) {
+            bytesPerChar = ratio;
+        } else {
+            bytesPerChar += (ratio - bytesPerChar) / 8;
+        }
+    }
+
+    /**
+     * 把s按UTF-8写进out，返回写入的字节数。
+     * ByteBufUtil.writeUtf8()会先按每个字符3个字节ensureWritable，初始容量按估计值分配时几乎每次都会扩容，
+     * 所以这里只在真的不够写的时候才扩容。
+     */
+    static int writeUtf8(ByteBuf out, CharSequence s) {
+        int start = out.writerIndex();
+        int len = s.length();
+        int i = 0;
+        //ASCII部分直接按字节写
+        out.ensureWritable(len);
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            out.writeByte(c);
+        }
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.ensureWritable(2);
+                out.writeByte(0xc0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.ensureWritable(4);
+                out.writeByte(0xf0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                out.writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                //不成对的代理字符，和String.getBytes()一样写成'?'
+                out.writeByte('?');
+            } else {
+                out.ensureWritable(3);
+                out.writeByte(0xe0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+        return out.writerIndex() - start;
     }
 }
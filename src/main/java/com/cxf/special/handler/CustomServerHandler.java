@@ -1,20 +1,72 @@
 package com.cxf.special.handler;
 
+import com.cxf.special.bin.CustomFrame;
 import com.cxf.special.bin.CustomMsg;
+import com.cxf.special.thread.StripedExecutor;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by cxf on 2019/1/2.
  */
+
+/**
+ * 带requestId的请求回一条同样requestId的响应（body原样带回），requestId为0的是单向消息不回。
+ * -DmaxReplyDelayMillis=N 时每个响应随机延迟0到N毫秒再写，模拟处理时间不同的请求，响应的顺序和请求的顺序不一致。
+ *
+ * 传了StripedExecutor时，CustomFrame的处理不在I/O线程上做，而是按key交给对应的条带：
+ * 同一个key（同一个连接，或者同一个type）的消息按顺序处理，不同key的并行处理。
+ */
 public class CustomServerHandler extends ChannelInboundHandlerAdapter {
 
+    private static final int MAX_REPLY_DELAY_MILLIS = Integer.getInteger("maxReplyDelayMillis", 0);
+
+    private final StripedExecutor executor;
+    //为true时按消息的type分条带，否则按连接
+    private final boolean orderByType;
+
+    public CustomServerHandler() {
+        this(null, false);
+    }
+
+    public CustomServerHandler(StripedExecutor executor, boolean orderByType) {
+        this.executor = executor;
+        this.orderByType = orderByType;
+    }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CustomFrame) {
+            //CustomDecoder.frames()解出来的帧，头部直接读，body到这里才解码
+            final CustomFrame frame = (CustomFrame) msg;
+            if ((frame.flag() & CustomFrame.FLAG_HEARTBEAT) != 0) {
+                //心跳不进业务线程池，也不打印，直接回
+                CustomMsg pong = new CustomMsg("", frame.requestId(), CustomFrame.FLAG_HEARTBEAT);
+                frame.release();
+                ctx.writeAndFlush(pong);
+                return;
+            }
+            if (executor == null) {
+                process(ctx, frame);
+                return;
+            }
+            Object key = orderByType ? Byte.valueOf(frame.type()) : ctx.channel();
+            //帧的引用交给业务线程，在process()里release；没执行就被丢掉时在discard()里release
+            try {
+                executor.execute(key, new FrameTask(ctx, frame), ctx.channel());
+            } catch (RejectedExecutionException e) {
+                //业务线程池已经关了，任务没有被接收
+                frame.release();
+                ctx.close();
+            }
+            return;
+        }
         if(msg instanceof CustomMsg) {
             CustomMsg customMsg = (CustomMsg)msg;
             System.out.println("Client->Server:"+ctx.channel().remoteAddress()+" send "+customMsg.getBody());
@@ -32,6 +84,50 @@ public class CustomServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private void process(ChannelHandlerContext ctx, CustomFrame frame) {
+        try {
+            System.out.println("Client->Server:" + ctx.channel().remoteAddress() + " " + frame + " send " + frame.body());
+            if (frame.requestId() != 0) {
+                reply(ctx, new CustomMsg(frame.body(), frame.requestId()));
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private final class FrameTask implements Runnable, StripedExecutor.Discardable {
+        private final ChannelHandlerContext ctx;
+        private final CustomFrame frame;
+
+        FrameTask(ChannelHandlerContext ctx, CustomFrame frame) {
+            this.ctx = ctx;
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            process(ctx, frame);
+        }
+
+        @Override
+        public void discard() {
+            frame.release();
+        }
+    }
+
+    private void reply(final ChannelHandlerContext ctx, final CustomMsg response) {
+        if (MAX_REPLY_DELAY_MILLIS <= 0) {
+            ctx.writeAndFlush(response);
+            return;
+        }
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ctx.writeAndFlush(response);
+            }
+        }, ThreadLocalRandom.current().nextInt(MAX_REPLY_DELAY_MILLIS + 1), TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         cause.printStackTrace();
@@ -1,67 +1,202 @@
 package com.cxf.special.handler;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.CharsetUtil;
+import io.netty.channel.ChannelPromise;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by cxf on 2019/1/2.
  */
-public class HeartBeatClientHandler extends ChannelInboundHandlerAdapter {
+
+/**
+ * 只在链路真的没有数据的时候才发ping，不再用IdleStateHandler每4秒固定发一次：
+ *
+ *   存活 ---> 读到的任何数据（包括HeartbeatFrameHandler发来的Heartbeat事件）都说明服务端还活着，不一定要是pong；
+ *            写出去的任何数据服务端都会当成心跳（服务端只看读空闲），所以距离上一次写还不到一个间隔时不发ping，只是把检查推迟到上一次写之后一个间隔
+ *   间隔 ---> 在[heartbeatMinMillis, heartbeatMaxMillis]之间调整：ping发出去在超时时间内收到了数据，间隔加一点，
+ *            没收到就减半再马上补一个ping；上限要比服务端的读空闲时间（5秒）小
+ *   超时 ---> 等pong的时间按测到的RTT算（和TCP的RTO一样：srtt + 4 * rttvar），不是固定值
+ *   断线 ---> 连续heartbeatMaxMisses个ping都没有等到任何数据就关闭连接，交给重连；ping本身不再限制次数
+ *
+ * 一个连接只有一个检查任务，到期或者等到了ping的回应时才重新schedule，写数据的时候只记一个时间。
+ * 业务数据的写和ping分开记时间，skipped只统计因为写过业务数据而省掉的ping。
+ * ping/pong是HeartbeatFrameHandler的一字节二进制帧，要放在pipeline最前面，ping从它的context写出去，不经过StringEncoder。
+ */
+public class HeartBeatClientHandler extends ChannelDuplexHandler {
 
 
-    private static final ByteBuf HEARTBEAT_SEQUENCE = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer("ping",
-            CharsetUtil.UTF_8));
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("heartbeatMinMillis", 1000));
+    private static final long MAX_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("heartbeatMaxMillis", 4000));
+    private static final int MAX_MISSES = Integer.getInteger("heartbeatMaxMisses", 3);
+    //还没测到RTT时等pong的时间
+    private static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
 
-    private static final int TRY_TIMES = 3;
+    private long intervalNanos = MAX_INTERVAL_NANOS;
+    //上一次业务数据的写，ping不算
+    private long lastWriteNanos;
+    //上一次发ping的时间
+    private long lastPingNanos;
+    //发出去还没等到数据的ping的发送时间，0表示没有
+    private long pingSentNanos;
+    private long srttNanos = -1;
+    private long rttvarNanos;
+    private int misses;
+    private ScheduledFuture<?> checkFuture;
+    //HeartbeatFrameHandler的context，ping从这里写
+    private ChannelHandlerContext heartbeatCtx;
 
-    private int currentTime = 0;
+    private long pings;
+    //到了该发ping的时候因为一个间隔内写过业务数据而没有发的次数
+    private long skipped;
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("激活时间是："+new Date());
         System.out.println("HeartBeatClientHandler channelActive");
+        heartbeatCtx = ctx.pipeline().context(HeartbeatFrameHandler.class);
+        if (heartbeatCtx == null) {
+            throw new IllegalStateException(HeartbeatFrameHandler.class.getSimpleName() + " must be in the pipeline");
+        }
+        //连接建立时当成刚发过ping，第一次检查在一个间隔之后
+        lastPingNanos = System.nanoTime();
+        schedule(ctx, intervalNanos);
         ctx.fireChannelActive();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("停止时间是："+new Date());
-        System.out.println("HeartBeatClientHandler channelInactive");
+        System.out.println("HeartBeatClientHandler channelInactive, pings=" + pings + ", skipped=" + skipped);
+        if (checkFuture != null) {
+            checkFuture.cancel(false);
+            checkFuture = null;
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        //业务数据也能让服务端知道连接还活着
+        lastWriteNanos = System.nanoTime();
+        ctx.write(msg, promise);
     }
 
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        System.out.println("循环触发时间："+new Date());
-        if (evt instanceof IdleStateEvent) {
-            IdleStateEvent event = (IdleStateEvent) evt;
-            //固定時間写ping
-            if (event.state() == IdleState.WRITER_IDLE) {
-                if(currentTime <= TRY_TIMES){
-                    System.out.println("currentTime:"+currentTime);
-                    currentTime++;
-                    ctx.channel().writeAndFlush(HEARTBEAT_SEQUENCE.duplicate());
-                }
-            }
+        if (evt instanceof HeartbeatFrameHandler.Heartbeat) {
+            //服务端的ping由HeartbeatFrameHandler回过了，这里和pong一样只算存活；只有pong能用来算RTT
+            alive(ctx, evt == HeartbeatFrameHandler.Heartbeat.PONG);
+            return;
         }
+        ctx.fireUserEventTriggered(evt);
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        String message = (String) msg;
-        System.out.println(message);
-        if (message.equals("Heartbeat")) {
-            ctx.write("has read message from server");
-            ctx.flush();
-        }
+        alive(ctx, false);
+        System.out.println((String) msg);
         ReferenceCountUtil.release(msg);
     }
 
+    /**
+     * 等pong的时候收到任何数据都算服务端还活着；不再等超时，检查任务改到下一次该发ping的时候
+     */
+    private void alive(ChannelHandlerContext ctx, boolean pong) {
+        if (pingSentNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (pong) {
+            updateRtt(now - pingSentNanos);
+        }
+        pingSentNanos = 0;
+        misses = 0;
+        intervalNanos = Math.min(MAX_INTERVAL_NANOS, intervalNanos + (MAX_INTERVAL_NANOS - MIN_INTERVAL_NANOS) / 8);
+        if (checkFuture != null) {
+            checkFuture.cancel(false);
+        }
+        schedule(ctx, Math.max(0, Math.max(lastWriteNanos, lastPingNanos) + intervalNanos - now));
+    }
+
+    private void check(ChannelHandlerContext ctx) {
+        checkFuture = null;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (pingSentNanos != 0) {
+            long wait = pingSentNanos + rto() - now;
+            if (wait > 0) {
+                schedule(ctx, wait);
+                return;
+            }
+            //超时了还没有收到任何数据
+            pingSentNanos = 0;
+            intervalNanos = Math.max(MIN_INTERVAL_NANOS, intervalNanos / 2);
+            if (++misses >= MAX_MISSES) {
+                System.out.println(misses + " pings without any data from server, closing");
+                ctx.close();
+                return;
+            }
+            ping(ctx, now);
+            return;
+        }
+        long silent = now - Math.max(lastWriteNanos, lastPingNanos);
+        if (silent < intervalNanos) {
+            if (now - lastWriteNanos < intervalNanos) {
+                //这个间隔里写过业务数据，不用ping；只是刚发过ping的不算
+                skipped++;
+            }
+            schedule(ctx, intervalNanos - silent);
+            return;
+        }
+        ping(ctx, now);
+    }
+
+    private void ping(ChannelHandlerContext ctx, long now) {
+        pings++;
+        System.out.println("ping " + pings + ", interval=" + TimeUnit.NANOSECONDS.toMillis(intervalNanos)
+                + "ms, srtt=" + (srttNanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMicros(srttNanos) + "us")
+                + ", misses=" + misses);
+        pingSentNanos = now;
+        lastPingNanos = now;
+        HeartbeatFrameHandler.ping(heartbeatCtx);
+        schedule(ctx, rto());
+    }
+
+    private void schedule(final ChannelHandlerContext ctx, long delayNanos) {
+        checkFuture = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(ctx);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 和TCP一样的平滑：srtt取1/8的新样本，rttvar取1/4
+     */
+    private void updateRtt(long sample) {
+        if (srttNanos < 0) {
+            srttNanos = sample;
+            rttvarNanos = sample / 2;
+        } else {
+            rttvarNanos += (Math.abs(srttNanos - sample) - rttvarNanos) / 4;
+            srttNanos += (sample - srttNanos) / 8;
+        }
+    }
+
+    private long rto() {
+        if (srttNanos < 0) {
+            return INITIAL_RTO_NANOS;
+        }
+        return Math.max(MIN_RTO_NANOS, srttNanos + 4 * rttvarNanos);
+    }
+
 }
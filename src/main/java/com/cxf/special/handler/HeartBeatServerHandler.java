@@ -10,12 +10,17 @@ import io.netty.handler.timeout.IdleStateEvent;
  */
 
 //线程安全么？
+//客户端发来的任何数据都算心跳，读到数据就把空闲计数清零；ping/pong由pipeline最前面的HeartbeatFrameHandler处理，
+//不会到这里，所以空闲事件是FIRST（上一次空闲之后读到过数据，包括ping）时也清零
 public class HeartBeatServerHandler extends ChannelInboundHandlerAdapter {
     private int loss_connect_time = 0;
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         if(evt instanceof IdleStateEvent){
             IdleStateEvent event = (IdleStateEvent) evt;
             if(event.state().equals(IdleState.READER_IDLE) ){
+                if (event.isFirst()) {
+                    loss_connect_time = 0;
+                }
                 loss_connect_time++;
                 System.out.println("5 秒没有接收到客户端的信息了");
                 if (loss_connect_time > 2) {
@@ -30,6 +35,7 @@ public class HeartBeatServerHandler extends ChannelInboundHandlerAdapter {
     }
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        loss_connect_time = 0;
         System.out.println("server channelRead..");
         System.out.println(ctx.channel().remoteAddress() + "->Server :" + msg.toString());
     }
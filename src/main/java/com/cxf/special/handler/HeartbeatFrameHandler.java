@@ -0,0 +1,89 @@
+package com.cxf.special.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ByteProcessor;
+
+/**
+ * Created by cxf on 2019/1/23.
+ */
+
+/**
+ * 二进制的心跳帧，每个只有一个字节：PING是0xFE，PONG是0xFF。这两个字节在UTF-8里不会出现，
+ * 所以可以直接混在StringEncoder写出的文本流里，不需要另外分帧。
+ *
+ * 放在pipeline最前面（在StringDecoder/StringEncoder前面）：
+ *   收到PING ---> 用预先建好的不可释放的buffer回一个PONG，直接从这里往head写，不经过StringEncoder
+ *   收到PONG ---> 不往后传数据，发一个Heartbeat.PONG事件，HeartBeatClientHandler用它算RTT
+ *   两种都会发Heartbeat事件，后面的handler可以当成对端还活着；其他字节原样往后传
+ *
+ * 常见情况是一次读到的就是一个心跳字节，这时不分配任何东西；心跳和文本粘在一起时把文本切成retainedSlice往后传。
+ * 心跳只有一个字节，不会被拆到两次读里，所以没有每个连接的状态，所有连接可以共用一个实例。
+ */
+@ChannelHandler.Sharable
+public class HeartbeatFrameHandler extends ChannelInboundHandlerAdapter {
+
+    public static final byte PING = (byte) 0xFE;
+    public static final byte PONG = (byte) 0xFF;
+
+    /**
+     * 收到心跳帧时发给后面handler的事件
+     */
+    public enum Heartbeat {
+        PING, PONG
+    }
+
+    private static final ByteBuf PING_FRAME = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(1, 1).writeByte(PING)).asReadOnly();
+    private static final ByteBuf PONG_FRAME = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(1, 1).writeByte(PONG)).asReadOnly();
+
+    //0xFE和0xFF的最高7位都是1
+    private static final ByteProcessor FIND_HEARTBEAT = new ByteProcessor() {
+        @Override
+        public boolean process(byte value) throws Exception {
+            return (value & 0xFE) != 0xFE;
+        }
+    };
+
+    /**
+     * 从ctx（应该是这个handler的context）往head写一个PING，不经过后面的编码器
+     */
+    public static void ping(ChannelHandlerContext ctx) {
+        ctx.writeAndFlush(PING_FRAME.duplicate(), ctx.voidPromise());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf in = (ByteBuf) msg;
+        int i;
+        while ((i = in.forEachByte(FIND_HEARTBEAT)) >= 0) {
+            int text = i - in.readerIndex();
+            if (text > 0) {
+                ctx.fireChannelRead(in.readRetainedSlice(text));
+            }
+            heartbeat(ctx, in.readByte());
+        }
+        if (in.isReadable()) {
+            ctx.fireChannelRead(in);
+        } else {
+            in.release();
+        }
+    }
+
+    private void heartbeat(ChannelHandlerContext ctx, byte frame) {
+        if (frame == PING) {
+            ctx.writeAndFlush(PONG_FRAME.duplicate(), ctx.voidPromise());
+            ctx.fireUserEventTriggered(Heartbeat.PING);
+        } else {
+            ctx.fireUserEventTriggered(Heartbeat.PONG);
+        }
+    }
+}
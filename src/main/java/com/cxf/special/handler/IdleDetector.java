@@ -0,0 +1,314 @@
+package com.cxf.special.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by cxf on 2019/1/21.
+ */
+
+/**
+ * 代替每个连接一个IdleStateHandler的读空闲检测。
+ *
+ * IdleStateHandler每个连接一个定时任务，每次到期都要重新schedule，几十万个基本不说话的连接时，
+ * EventLoop的定时任务队列（一个堆）光是进进出出就要占掉不少时间。这里换成每个EventLoop一个时间轮：
+ *
+ *   记录 ---> 每个连接在所属EventLoop的表里占一个槽，channelRead只往lastRead[槽]里写一个long（上一次tick时缓存的时间），
+ *            不碰时间轮，也不调用System.nanoTime()
+ *   检测 ---> 时间轮512格，每格放"这一格到期"的槽号；每个EventLoop一个固定频率的定时任务，每次扫到期的格子：
+ *            还没到lastRead+idle的放回它真正到期的那一格，到了的就是空闲连接。一个连接一个空闲周期大约只被看一次
+ *   处理 ---> 空闲连接按批处理，每次tick最多batch个，多出来的放到下一格；处理方式是直接关闭，
+ *            或者和IdleStateHandler一样发IdleStateEvent（READER_IDLE，之后一直没读到数据的话每个空闲周期再发一次）
+ *
+ * 一个IdleDetector可以给所有连接共用，每个连接用newHandler()拿一个handler放在pipeline最前面。
+ */
+public class IdleDetector {
+
+    private static final int WHEEL_SIZE = 512;
+    //每格的时间，空闲时间的精度就是这么多
+    private static final long TICK_MILLIS = Long.getLong("idleTickMillis", 100);
+    //每次tick最多处理的空闲连接数，避免一大批连接同时到期时一次关太多，把EventLoop拖住
+    private static final int BATCH = Integer.getInteger("idleBatch", 1024);
+
+    private final long idleNanos;
+    private final long tickNanos;
+    private final boolean closeIdle;
+    private final FastThreadLocal<Wheel> wheels = new FastThreadLocal<Wheel>();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder events = new LongAdder();
+
+    /**
+     * @param closeIdle true时直接关闭空闲连接，false时发IdleStateEvent，由后面的handler决定怎么处理
+     */
+    public IdleDetector(long idleTime, TimeUnit unit, boolean closeIdle) {
+        this.idleNanos = unit.toNanos(idleTime);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        this.closeIdle = closeIdle;
+        if (idleNanos <= 0) {
+            throw new IllegalArgumentException("idleTime: " + idleTime + " (expected: > 0)");
+        }
+    }
+
+    /**
+     * 每个连接一个，放在pipeline最前面，所有读到的数据都算
+     */
+    public ChannelHandler newHandler() {
+        return new Handler();
+    }
+
+    /**
+     * 因为空闲被关闭的连接数
+     */
+    public long closed() {
+        return closed.sum();
+    }
+
+    /**
+     * 发出的IdleStateEvent数
+     */
+    public long events() {
+        return events.sum();
+    }
+
+    private final class Handler extends ChannelInboundHandlerAdapter {
+
+        private Wheel wheel;
+        private int slot = -1;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isActive()) {
+                register(ctx);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            register(ctx);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (slot >= 0) {
+                wheel.lastRead[slot] = wheel.now;
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            unregister();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            unregister();
+        }
+
+        private void register(ChannelHandlerContext ctx) {
+            if (slot >= 0) {
+                return;
+            }
+            wheel = wheels.get();
+            if (wheel == null) {
+                wheel = new Wheel(ctx.executor());
+                wheels.set(wheel);
+            }
+            slot = wheel.register(ctx.channel());
+        }
+
+        private void unregister() {
+            if (slot >= 0) {
+                wheel.unregister(slot);
+                slot = -1;
+            }
+        }
+    }
+
+    /**
+     * 一个EventLoop的连接表和时间轮，只在这个EventLoop的线程上访问
+     */
+    private final class Wheel implements Runnable {
+
+        private final EventExecutor executor;
+        private final long startTime = System.nanoTime();
+        //上一次tick的时间，channelRead记到lastRead里
+        long now = startTime;
+        //已经扫过的最后一格
+        private long tick;
+        private ScheduledFuture<?> tickFuture;
+
+        //按槽号存的连接状态；generation在槽释放时加1，时间轮里旧的条目靠它识别
+        private Channel[] channels = new Channel[64];
+        long[] lastRead = new long[64];
+        private long[] lastEvent = new long[64];
+        private int[] generations = new int[64];
+        private int[] free = new int[64];
+        private int freeCount;
+        //用过的最大槽号+1
+        private int used;
+        private int count;
+
+        //时间轮，每个条目是generation << 32 | slot
+        private final long[][] buckets = new long[WHEEL_SIZE][];
+        private final int[] bucketSizes = new int[WHEEL_SIZE];
+        //扫一格时和这一格的数组交换，扫的过程中放回的条目不会写到正在扫的数组里
+        private long[] spare = new long[16];
+
+        //一次tick里找到的空闲连接，两个都重复使用
+        private final List<Channel> idleChannels = new ArrayList<Channel>();
+        private int[] idleSlots = new int[16];
+
+        Wheel(EventExecutor executor) {
+            this.executor = executor;
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[i] = new long[16];
+            }
+        }
+
+        int register(Channel channel) {
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                if (used == channels.length) {
+                    grow();
+                }
+                slot = used++;
+            }
+            if (count++ == 0) {
+                //之前没有连接，定时任务停着，now是旧的
+                now = System.nanoTime();
+                tick = ticksOf(now);
+                tickFuture = executor.scheduleAtFixedRate(this, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+            }
+            channels[slot] = channel;
+            lastRead[slot] = now;
+            lastEvent[slot] = now;
+            place(slot, now + idleNanos);
+            return slot;
+        }
+
+        void unregister(int slot) {
+            channels[slot] = null;
+            generations[slot]++;
+            free[freeCount++] = slot;
+            if (--count == 0) {
+                tickFuture.cancel(false);
+                tickFuture = null;
+                //时间轮里剩下的都是旧的条目
+                Arrays.fill(bucketSizes, 0);
+            }
+        }
+
+        @Override
+        public void run() {
+            now = System.nanoTime();
+            long current = ticksOf(now);
+            //晚了很多格（EventLoop被拖住）时最多扫一圈
+            long from = Math.max(tick + 1, current - WHEEL_SIZE + 1);
+            tick = current;
+            for (long t = from; t <= current; t++) {
+                sweep((int) (t & (WHEEL_SIZE - 1)));
+            }
+            //扫完再处理，关闭连接、发事件时会调到unregister()和别的handler，不影响上面的遍历
+            for (int k = 0; k < idleChannels.size(); k++) {
+                Channel channel = idleChannels.get(k);
+                if (closeIdle) {
+                    closed.increment();
+                    channel.close();
+                } else {
+                    events.increment();
+                    channel.pipeline().fireUserEventTriggered(idleSlots[k] == 0
+                            ? IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT : IdleStateEvent.READER_IDLE_STATE_EVENT);
+                }
+            }
+            idleChannels.clear();
+        }
+
+        private void sweep(int bucket) {
+            long[] entries = buckets[bucket];
+            int n = bucketSizes[bucket];
+            buckets[bucket] = spare;
+            bucketSizes[bucket] = 0;
+            for (int k = 0; k < n; k++) {
+                long entry = entries[k];
+                int slot = (int) entry;
+                if (generations[slot] != (int) (entry >>> 32)) {
+                    //连接已经断开，槽可能已经给了别的连接
+                    continue;
+                }
+                long last = Math.max(lastRead[slot], lastEvent[slot]);
+                long deadline = last + idleNanos;
+                if (deadline - now > 0) {
+                    //期间读到过数据，放到真正到期的那一格
+                    place(slot, deadline);
+                    continue;
+                }
+                if (idleChannels.size() == BATCH) {
+                    //这一批满了，下一格再处理
+                    placeAt(slot, tick + 1);
+                    continue;
+                }
+                if (idleChannels.size() == idleSlots.length) {
+                    idleSlots = Arrays.copyOf(idleSlots, idleSlots.length << 1);
+                }
+                //0表示上一次事件之后读到过数据（或者还没发过事件），发FIRST_READER_IDLE_STATE_EVENT
+                idleSlots[idleChannels.size()] = lastEvent[slot] > lastRead[slot] ? 1 : 0;
+                idleChannels.add(channels[slot]);
+                if (!closeIdle) {
+                    //一直没读到数据的话，下一个空闲周期再发一次
+                    lastEvent[slot] = now;
+                    place(slot, now + idleNanos);
+                }
+            }
+            spare = entries;
+        }
+
+        private void place(int slot, long deadline) {
+            //放到deadline所在格子的下一格，扫到时一定已经过了deadline
+            placeAt(slot, ticksOf(deadline) + 1);
+        }
+
+        private void placeAt(int slot, long t) {
+            if (t <= tick) {
+                t = tick + 1;
+            }
+            int bucket = (int) (t & (WHEEL_SIZE - 1));
+            long[] entries = buckets[bucket];
+            int n = bucketSizes[bucket];
+            if (n == entries.length) {
+                entries = buckets[bucket] = Arrays.copyOf(entries, n << 1);
+            }
+            entries[n] = ((long) generations[slot] << 32) | slot;
+            bucketSizes[bucket] = n + 1;
+        }
+
+        private long ticksOf(long nanos) {
+            return (nanos - startTime) / tickNanos;
+        }
+
+        private void grow() {
+            int capacity = channels.length << 1;
+            channels = Arrays.copyOf(channels, capacity);
+            lastRead = Arrays.copyOf(lastRead, capacity);
+            lastEvent = Arrays.copyOf(lastEvent, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            free = Arrays.copyOf(free, capacity);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.CustomFrame;
+import com.cxf.special.bin.CustomMsg;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Created by cxf on 2019/1/13.
+ */
+
+/**
+ * 一个连接上同时有多个在途请求：写出去的Call在这里分配requestId，放进等待表；
+ * 收到的CustomFrame按requestId找到对应的Promise完成，所以服务端可以按任意顺序响应。
+ *
+ * 等待表是这个EventLoop上所有连接共用的PendingRequestTable（long做key的开放寻址表，requestId由它分配），
+ * 超时也由它的时间轮处理，发一个请求除了promise本身不再创建Timeout、TimerTask之类的对象。
+ */
+public class MultiplexClientHandler extends ChannelDuplexHandler {
+
+    /**
+     * 发一个请求：MultiplexClient把它写进pipeline，响应或者失败通过promise通知
+     */
+    public static final class Call {
+        final String body;
+        final byte flag;
+        final Promise<CustomMsg> promise;
+
+        public Call(String body, Promise<CustomMsg> promise) {
+            this(body, (byte) 0, promise);
+        }
+
+        public Call(String body, byte flag, Promise<CustomMsg> promise) {
+            this.body = body;
+            this.flag = flag;
+            this.promise = promise;
+        }
+
+        public Promise<CustomMsg> promise() {
+            return promise;
+        }
+    }
+
+    private final long timeoutMillis;
+    private PendingRequestTable table;
+    //这个连接在等待表里的请求数，由PendingRequestTable在EventLoop上维护，给连接池选连接用，其他线程会读
+    volatile int pendingCount;
+
+    public MultiplexClientHandler(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof Call)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        Call call = (Call) msg;
+        if (!ctx.channel().isActive()) {
+            //channelInactive已经处理过了，不放进等待表，否则要等到超时才失败
+            call.promise.tryFailure(new ClosedChannelException());
+            promise.tryFailure(new ClosedChannelException());
+            return;
+        }
+        if (table == null) {
+            table = PendingRequestTable.get(ctx.executor());
+        }
+        long id = table.add(this, call.promise, timeoutMillis);
+        //写失败时exceptionCaught会关闭连接，channelInactive里统一让等待的请求失败，这里不再每个请求挂一个listener
+        ctx.write(new CustomMsg(call.body, id, call.flag), promise);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CustomFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CustomFrame frame = (CustomFrame) msg;
+        try {
+            Promise<CustomMsg> promise = table == null ? null : table.remove(this, frame.requestId());
+            if (promise != null) {
+                promise.trySuccess(frame.toMsg());
+            }
+            //找不到的是已经超时的请求，丢掉
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (table != null) {
+            table.failAll(this, new ClosedChannelException());
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+
+    /**
+     * 在途请求数，任意线程都可以调用
+     */
+    public int pending() {
+        return pendingCount;
+    }
+}
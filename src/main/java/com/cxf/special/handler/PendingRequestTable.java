@@ -0,0 +1,313 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.CustomMsg;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Created by cxf on 2019/1/20.
+ */
+
+/**
+ * 一个EventLoop上所有MultiplexClientHandler共用的等待表：requestId -> Promise，只在这个EventLoop的线程上访问。
+ *
+ *   存储 ---> 和LongObjectHashMap一样是开放寻址、线性探测，key是long[]不装箱，删除时把后面的元素往前移，不留墓碑；
+ *            hash多做了一次打散，见indexOf()；
+ *            value（promise）、所属的handler、到期时间放在平行的数组里，放一个请求不创建任何对象
+ *   超时 ---> 不是每个请求一个Timeout/ScheduledFuture，而是自己的时间轮：wheel[i]是一个long[]，放到期在第i格的requestId，
+ *            整个EventLoop只有一个定时任务，每格（10ms）扫一格。请求正常完成时不去时间轮里删，扫到时查不到就跳过；
+ *            requestId在一个EventLoop上单调递增、不会重用，所以扫到的旧id不会误伤新请求
+ *
+ * 表空了定时任务就不再调度，下一个请求进来再启动。
+ */
+final class PendingRequestTable {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    //512格 * 10ms，超时比这个长的扫到时还没到期，放回到期的那一格
+    private static final int WHEEL_SIZE = 512;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private static final FastThreadLocal<PendingRequestTable> TABLES = new FastThreadLocal<PendingRequestTable>();
+
+    /**
+     * 当前EventLoop的表，只能在EventLoop的线程上调用
+     */
+    static PendingRequestTable get(EventExecutor executor) {
+        PendingRequestTable table = TABLES.get();
+        if (table == null) {
+            table = new PendingRequestTable(executor);
+            TABLES.set(table);
+        }
+        return table;
+    }
+
+    private final EventExecutor executor;
+
+    //0表示空槽，requestId从1开始
+    private long[] keys;
+    private Object[] promises;
+    private MultiplexClientHandler[] owners;
+    private long[] deadlines;
+    private int mask;
+    private int size;
+    private int maxSize;
+    private long nextId = 1;
+
+    private final long[][] wheel = new long[WHEEL_SIZE][];
+    private final int[] wheelSizes = new int[WHEEL_SIZE];
+    private final long startTime = System.nanoTime();
+    //已经扫过的最后一格
+    private long lastTick;
+    private boolean ticking;
+    //一次tick里超时的请求，扫完所有格子再通知，两个都重复使用
+    private final List<Promise<CustomMsg>> expiredPromises = new ArrayList<Promise<CustomMsg>>();
+    private long[] expiredIds = new long[16];
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private PendingRequestTable(EventExecutor executor) {
+        this.executor = executor;
+        allocate(INITIAL_CAPACITY);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new long[16];
+        }
+        lastTick = currentTick();
+    }
+
+    /**
+     * 放进一个请求，返回分配给它的requestId
+     */
+    long add(MultiplexClientHandler owner, Promise<CustomMsg> promise, long timeoutMillis) {
+        long id = nextId++;
+        if (size >= maxSize) {
+            rehash(keys.length << 1);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int i = indexOf(id);
+        while (keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        promises[i] = promise;
+        owners[i] = owner;
+        deadlines[i] = deadline;
+        size++;
+        owner.pendingCount++;
+        //放到deadline所在格子的下一格，扫到时一定已经过了deadline
+        schedule(id, tickOf(deadline) + 1);
+        if (!ticking) {
+            ticking = true;
+            executor.schedule(tickTask, TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return id;
+    }
+
+    /**
+     * 取出并删除owner的请求，不存在（已经超时）或者不是owner发的返回null
+     */
+    @SuppressWarnings("unchecked")
+    Promise<CustomMsg> remove(MultiplexClientHandler owner, long id) {
+        int i = find(id);
+        if (i < 0 || owners[i] != owner) {
+            return null;
+        }
+        Promise<CustomMsg> promise = (Promise<CustomMsg>) promises[i];
+        removeAt(i);
+        return promise;
+    }
+
+    /**
+     * 连接断开时让owner的所有请求失败，要扫一遍整个表，但连接断开比请求少得多
+     */
+    @SuppressWarnings("unchecked")
+    void failAll(MultiplexClientHandler owner, Throwable cause) {
+        List<Promise<CustomMsg>> failed = new ArrayList<Promise<CustomMsg>>(owner.pendingCount);
+        //removeAt往前移元素时可能绕回到已经扫过的位置，没删干净就再扫一遍
+        while (owner.pendingCount > 0) {
+            for (int i = 0; i < keys.length; i++) {
+                //removeAt可能把后面的元素移到i，所以同一个位置要一直查到不是owner的为止
+                while (keys[i] != 0 && owners[i] == owner) {
+                    failed.add((Promise<CustomMsg>) promises[i]);
+                    removeAt(i);
+                }
+            }
+        }
+        //先删完再通知，listener里发新请求不会影响上面的遍历
+        for (Promise<CustomMsg> promise : failed) {
+            promise.tryFailure(cause);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void tick() {
+        long now = currentTick();
+        //晚了很多格（EventLoop被拖住）时最多扫一圈
+        long from = Math.max(lastTick + 1, now - WHEEL_SIZE + 1);
+        long nowNanos = System.nanoTime();
+        for (long t = from; t <= now; t++) {
+            expire((int) (t & (WHEEL_SIZE - 1)), nowNanos);
+        }
+        lastTick = now;
+        //扫完再通知，listener里发新请求时不会改到正在扫的格子
+        for (int k = 0; k < expiredPromises.size(); k++) {
+            expiredPromises.get(k).tryFailure(new TimeoutException("request " + expiredIds[k] + " timed out"));
+        }
+        expiredPromises.clear();
+        if (size > 0) {
+            executor.schedule(tickTask, TICK_NANOS, TimeUnit.NANOSECONDS);
+        } else {
+            ticking = false;
+            //表空了，时间轮里剩下的都是已经完成的id，清掉
+            Arrays.fill(wheelSizes, 0);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expire(int bucket, long nowNanos) {
+        long[] ids = wheel[bucket];
+        int n = wheelSizes[bucket];
+        int kept = 0;
+        for (int k = 0; k < n; k++) {
+            long id = ids[k];
+            int i = find(id);
+            if (i < 0) {
+                //已经完成了
+                continue;
+            }
+            long deadline = deadlines[i];
+            if (deadline - nowNanos > 0) {
+                //超时比一圈长，还没到期，留在这一格等下一圈
+                ids[kept++] = id;
+                continue;
+            }
+            if (expiredPromises.size() == expiredIds.length) {
+                expiredIds = Arrays.copyOf(expiredIds, expiredIds.length << 1);
+            }
+            expiredIds[expiredPromises.size()] = id;
+            expiredPromises.add((Promise<CustomMsg>) promises[i]);
+            removeAt(i);
+        }
+        wheelSizes[bucket] = kept;
+    }
+
+    private void schedule(long id, long tick) {
+        //到期的那一格已经扫过了（超时小于一格），放到下一格
+        if (tick <= lastTick) {
+            tick = lastTick + 1;
+        }
+        int bucket = (int) (tick & (WHEEL_SIZE - 1));
+        long[] ids = wheel[bucket];
+        int n = wheelSizes[bucket];
+        if (n == ids.length) {
+            ids = wheel[bucket] = Arrays.copyOf(ids, n << 1);
+        }
+        ids[n] = id;
+        wheelSizes[bucket] = n + 1;
+    }
+
+    private long currentTick() {
+        return tickOf(System.nanoTime());
+    }
+
+    private long tickOf(long nanos) {
+        return (nanos - startTime) / TICK_NANOS;
+    }
+
+    private int find(long id) {
+        int i = indexOf(id);
+        for (;;) {
+            long key = keys[i];
+            if (key == 0) {
+                return -1;
+            }
+            if (key == id) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * requestId是连续的，直接取低位会排成一整段连续的槽，线性探测删除时要把后面整段往前挪。
+     * 乘一个黄金分割常数把连续的id打散
+     */
+    private int indexOf(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * 删除i位置的元素，把后面探测链上的元素往前移填上空位（同LongObjectHashMap.removeAt）
+     */
+    private void removeAt(int index) {
+        owners[index].pendingCount--;
+        size--;
+        keys[index] = 0;
+        promises[index] = null;
+        owners[index] = null;
+        int i = index;
+        int next = (i + 1) & mask;
+        while (keys[next] != 0) {
+            int bucket = indexOf(keys[next]);
+            //next的元素的理想位置不在(i, next]之间，说明它可以移到i
+            if ((next < bucket && (bucket <= i || i <= next)) || (bucket <= i && i <= next)) {
+                keys[i] = keys[next];
+                promises[i] = promises[next];
+                owners[i] = owners[next];
+                deadlines[i] = deadlines[next];
+                keys[next] = 0;
+                promises[next] = null;
+                owners[next] = null;
+                i = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldPromises = promises;
+        MultiplexClientHandler[] oldOwners = owners;
+        long[] oldDeadlines = deadlines;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key == 0) {
+                continue;
+            }
+            int i = indexOf(key);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            promises[i] = oldPromises[j];
+            owners[i] = oldOwners[j];
+            deadlines[i] = oldDeadlines[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        promises = new Object[capacity];
+        owners = new MultiplexClientHandler[capacity];
+        deadlines = new long[capacity];
+        mask = capacity - 1;
+        maxSize = (int) (capacity * LOAD_FACTOR);
+    }
+}
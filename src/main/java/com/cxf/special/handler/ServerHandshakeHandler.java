@@ -0,0 +1,90 @@
+package com.cxf.special.handler;
+
+import com.cxf.special.bin.Capabilities;
+import com.cxf.special.bin.CustomFrame;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+
+/**
+ * Created by cxf on 2019/1/16.
+ */
+
+/**
+ * 服务端握手：初始的pipeline只有 CustomDecoder.frames() -> ServerHandshakeHandler -> 业务handler，
+ * 第一帧决定这个连接用哪些编解码handler，装好以后把自己移除。
+ *
+ *   1.第一帧是TYPE_HANDSHAKE：和本端的能力协商，把结果回给客户端，再按结果装上
+ *     CustomBatchDecoder（客户端可以发批量帧时）、协商好算法的CustomCompressionHandler和CustomEncoder
+ *   2.第一帧是别的：没有握手的老客户端，装上兼容所有老版本的一套（能拆批量帧、用TYPE_COMPRESSION通告的方式协商压缩），
+ *     再把这一帧交给新装的handler
+ *
+ * 这样新的编解码可以逐步在客户端上线，不用所有客户端都退到最老的那一种。
+ * 客户端发完握手帧会等服务端的回复再发别的，所以换handler的时候解码器里没有积压的数据。
+ */
+public class ServerHandshakeHandler extends ChannelInboundHandlerAdapter {
+
+    private final Capabilities local;
+    private final byte[] compression;
+    private final int compressThreshold;
+
+    /**
+     * @param compression 本端支持的压缩算法，按优先顺序
+     */
+    public ServerHandshakeHandler(int maxFrameLength, byte[] compression, int compressThreshold) {
+        this.local = new Capabilities(Capabilities.VERSION, maxFrameLength,
+                CustomCompressionHandler.mask(compression), Capabilities.FEATURE_BATCH);
+        this.compression = compression;
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CustomFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CustomFrame frame = (CustomFrame) msg;
+        if (frame.type() == CustomFrame.TYPE_HANDSHAKE) {
+            try {
+                Capabilities agreed = local.negotiate(Capabilities.decode(frame), compression);
+                //编码器还没装，直接写编码好的帧
+                ctx.writeAndFlush(agreed.encode(ctx.alloc()));
+                configure(ctx, agreed);
+                System.out.println(ctx.channel().remoteAddress() + " handshake: " + agreed);
+            } finally {
+                frame.release();
+            }
+        } else {
+            configureLegacy(ctx);
+            System.out.println(ctx.channel().remoteAddress() + " no handshake, legacy codecs");
+            ctx.fireChannelRead(frame);
+        }
+        ctx.pipeline().remove(this);
+    }
+
+    /**
+     * addAfter都加在自己后面，所以按入站顺序倒着加
+     */
+    private void configure(ChannelHandlerContext ctx, Capabilities agreed) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), null, new CustomEncoder());
+        if (agreed.compression() != 0) {
+            pipeline.addAfter(ctx.name(), null,
+                    CustomCompressionHandler.negotiated(agreed.compression(), compressThreshold, local.maxFrameLength()));
+        }
+        if (agreed.supports(Capabilities.FEATURE_BATCH)) {
+            pipeline.addAfter(ctx.name(), null, new CustomBatchDecoder());
+        }
+    }
+
+    private void configureLegacy(ChannelHandlerContext ctx) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), null, new CustomEncoder());
+        if (compression.length > 0) {
+            pipeline.addAfter(ctx.name(), null,
+                    new CustomCompressionHandler(compression, compressThreshold, local.maxFrameLength()));
+        }
+        pipeline.addAfter(ctx.name(), null, new CustomBatchDecoder());
+    }
+}
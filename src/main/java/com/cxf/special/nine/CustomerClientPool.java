@@ -0,0 +1,339 @@
+package com.cxf.special.nine;
+
+import com.cxf.special.bin.Capabilities;
+import com.cxf.special.bin.CustomMsg;
+import com.cxf.transport.Transports;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by cxf on 2019/1/18.
+ */
+
+/**
+ * CustomerServer的连接池，每个连接是一个MultiplexClient（本身就可以有多个在途请求），请求复用已有的连接，不用每次重新握手。
+ *
+ *   连接数   ---> 启动时建min个；选中的连接在途请求达到maxPending而且连接数没到max时，后台再建一个；
+ *               健康检查时发现一个周期内没有被用过的连接，超过min的部分每次关一个
+ *   健康检查 ---> 每healthIntervalMillis给每个连接发一个心跳（FLAG_HEARTBEAT），连续两次失败或者连接已经断开就移出池子并关闭，
+ *               然后补足到min
+ *   选连接   ---> ROUND_ROBIN：轮流；
+ *               LEAST_PENDING：遍历所有连接，选在途请求最少的；
+ *               POWER_OF_TWO：随机挑两个，选在途请求少的那个，效果接近LEAST_PENDING，但不用遍历，也不会所有调用方同时挤到同一个"最空"的连接上
+ */
+public class CustomerClientPool {
+
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_PENDING, POWER_OF_TWO
+    }
+
+    private static final int HEALTH_FAILURES = 2;
+
+    private final EventLoopGroup group;
+    private final String host;
+    private final int port;
+    private final int min;
+    private final int max;
+    private final int maxPending;
+    private final Strategy strategy;
+    private final long healthIntervalMillis;
+    //健康检查固定在这个EventLoop上跑，Member的failures/usedAtLastCheck只在这里改，不用同步
+    private final EventExecutor checker;
+
+    private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<Member>();
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile ScheduledFuture<?> healthCheck;
+    private volatile boolean closed;
+
+    /**
+     * 池子里的一个连接。在途请求数在调用方的线程上加、响应回来时减，
+     * 不用MultiplexClient.pending()：那个计数在EventLoop上处理完写请求才加，连续发请求时选连接会看到旧值
+     */
+    private static final class Member {
+        final MultiplexClient client;
+        final AtomicInteger inflight = new AtomicInteger();
+        //发出的请求数，健康检查用它判断连接是否空闲
+        final AtomicLong used = new AtomicLong();
+        //连续心跳失败次数
+        int failures;
+        long usedAtLastCheck;
+
+        Member(MultiplexClient client) {
+            this.client = client;
+        }
+
+        boolean isActive() {
+            return client.isActive();
+        }
+    }
+
+    public CustomerClientPool(EventLoopGroup group, String host, int port, int min, int max, int maxPending,
+                              Strategy strategy, long healthIntervalMillis) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("min: " + min + ", max: " + max + " (expected: 0 < min <= max)");
+        }
+        this.group = group;
+        this.host = host;
+        this.port = port;
+        this.min = min;
+        this.max = max;
+        this.maxPending = maxPending;
+        this.strategy = strategy;
+        this.healthIntervalMillis = healthIntervalMillis;
+        this.checker = group.next();
+    }
+
+    /**
+     * 建好min个连接再返回；有一个连不上时把已经建好的关掉再抛出异常
+     */
+    public void start() throws InterruptedException {
+        boolean started = false;
+        try {
+            for (int i = 0; i < min; i++) {
+                MultiplexClient client = new MultiplexClient(group);
+                client.connect(host, port);
+                members.add(new Member(client));
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                close();
+            }
+        }
+        healthCheck = checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, healthIntervalMillis, healthIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Future<CustomMsg> request(String body) {
+        final Member member = select();
+        if (member == null) {
+            return group.next().newFailedFuture(new IllegalStateException("no active connection to " + host + ":" + port));
+        }
+        if (member.inflight.incrementAndGet() > maxPending) {
+            grow();
+        }
+        member.used.incrementAndGet();
+        Future<CustomMsg> future = member.client.request(body);
+        future.addListener(new FutureListener<CustomMsg>() {
+            @Override
+            public void operationComplete(Future<CustomMsg> future) throws Exception {
+                member.inflight.decrementAndGet();
+            }
+        });
+        return future;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * 每个连接发出的请求数
+     */
+    public List<Long> usage() {
+        List<Long> result = new ArrayList<Long>();
+        for (Member member : members) {
+            result.add(member.used.get());
+        }
+        return result;
+    }
+
+    public void close() {
+        closed = true;
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+        }
+        for (Member member : members) {
+            //调用方的线程，等连接都关完再返回
+            if (members.remove(member)) {
+                member.client.close();
+            }
+        }
+    }
+
+    private Member select() {
+        Object[] snapshot = members.toArray();
+        int n = snapshot.length;
+        if (n == 0) {
+            return null;
+        }
+        switch (strategy) {
+            case LEAST_PENDING: {
+                Member best = null;
+                for (Object o : snapshot) {
+                    Member m = (Member) o;
+                    if (m.isActive() && (best == null || m.inflight.get() < best.inflight.get())) {
+                        best = m;
+                    }
+                }
+                return best;
+            }
+            case POWER_OF_TWO: {
+                if (n == 1) {
+                    return activeOrNull((Member) snapshot[0]);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int i = random.nextInt(n);
+                //第二个从剩下的n-1个里挑，保证两个不同
+                int j = (i + 1 + random.nextInt(n - 1)) % n;
+                Member a = (Member) snapshot[i];
+                Member b = (Member) snapshot[j];
+                if (!a.isActive()) {
+                    return activeOrNull(b);
+                }
+                if (!b.isActive()) {
+                    return a;
+                }
+                return a.inflight.get() <= b.inflight.get() ? a : b;
+            }
+            default: {
+                int start = next.getAndIncrement() & Integer.MAX_VALUE;
+                for (int k = 0; k < n; k++) {
+                    Member m = (Member) snapshot[(start + k) % n];
+                    if (m.isActive()) {
+                        return m;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    private static Member activeOrNull(Member member) {
+        return member.isActive() ? member : null;
+    }
+
+    /**
+     * 后台建一个连接，握手完成后加进池子，连接数算上正在建的
+     */
+    private void grow() {
+        for (;;) {
+            int pendingConnects = connecting.get();
+            if (closed || members.size() + pendingConnects >= max) {
+                return;
+            }
+            if (connecting.compareAndSet(pendingConnects, pendingConnects + 1)) {
+                break;
+            }
+        }
+        final MultiplexClient client = new MultiplexClient(group);
+        client.connectAsync(host, port).addListener(new FutureListener<Capabilities>() {
+            @Override
+            public void operationComplete(Future<Capabilities> future) throws Exception {
+                if (future.isSuccess()) {
+                    Member member = new Member(client);
+                    members.add(member);
+                    if (closed) {
+                        remove(member);
+                    }
+                } else if (!closed) {
+                    System.err.println("pool connect to " + host + ":" + port + " failed: " + future.cause());
+                }
+                //先加进池子再减，grow()不会在这中间多建一个
+                connecting.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 在健康检查的EventLoop和连接的回调里调用，只发起关闭，不阻塞EventLoop
+     */
+    private void remove(Member member) {
+        if (members.remove(member)) {
+            member.client.closeAsync();
+        }
+    }
+
+    private void checkHealth() {
+        boolean shrunk = false;
+        for (final Member member : members) {
+            if (!member.isActive()) {
+                System.out.println("pool: removing closed connection");
+                remove(member);
+                continue;
+            }
+            long used = member.used.get();
+            boolean idle = used == member.usedAtLastCheck && member.inflight.get() == 0;
+            member.usedAtLastCheck = used;
+            if (idle && !shrunk && members.size() > min) {
+                //一个周期都没用过，每次最多关一个，慢慢缩回min
+                shrunk = true;
+                remove(member);
+                continue;
+            }
+            member.client.heartbeat().addListener(new FutureListener<CustomMsg>() {
+                @Override
+                public void operationComplete(Future<CustomMsg> future) throws Exception {
+                    //心跳响应在连接自己的EventLoop上回来，转回健康检查的EventLoop再改failures
+                    final boolean success = future.isSuccess();
+                    final Throwable cause = future.cause();
+                    checker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (success) {
+                                member.failures = 0;
+                            } else if (++member.failures >= HEALTH_FAILURES) {
+                                System.out.println("pool: removing unhealthy connection: " + cause);
+                                remove(member);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        for (int i = members.size() + connecting.get(); i < min; i++) {
+            grow();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Strategy strategy = Strategy.valueOf(System.getProperty("strategy", "power_of_two").toUpperCase());
+        int minConnections = Integer.getInteger("minConnections", 2);
+        int maxConnections = Integer.getInteger("maxConnections", 8);
+        int maxPending = Integer.getInteger("maxPending", 64);
+        EventLoopGroup group = Transports.newEventLoopGroup();
+        try {
+            CustomerClientPool pool = new CustomerClientPool(group, MultiplexClient.HOST, MultiplexClient.PORT,
+                    minConnections, maxConnections, maxPending, strategy, 1000);
+            pool.start();
+            final CountDownLatch done = new CountDownLatch(MultiplexClient.REQUESTS);
+            final AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < MultiplexClient.REQUESTS; i++) {
+                pool.request("request-" + i).addListener(new FutureListener<CustomMsg>() {
+                    @Override
+                    public void operationComplete(Future<CustomMsg> future) throws Exception {
+                        if (!future.isSuccess()) {
+                            failed.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            System.out.println(MultiplexClient.REQUESTS + " requests, " + failed.get() + " failed, "
+                    + (System.nanoTime() - start) / 1000000 + "ms, strategy=" + strategy
+                    + ", connections=" + pool.size() + ", requests per connection=" + pool.usage());
+            pool.close();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+}
@@ -1,24 +1,45 @@
 package com.cxf.special.nine;
 
+import com.cxf.special.handler.CustomCompressionHandler;
 import com.cxf.special.handler.CustomDecoder;
 import com.cxf.special.handler.CustomServerHandler;
+import com.cxf.special.handler.ServerHandshakeHandler;
+import com.cxf.special.thread.StripedExecutor;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LoggingHandler;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by cxf on 2019/1/2.
  */
 public class CustomerServer {
 
+    //客户端开了攒批时，批量帧的大小是batchBytes加上最后一帧，这里要放得下
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("maxFrameLength", 1024);
+
+    //支持的压缩算法，按优先顺序，空字符串表示不压缩；body达到compressThreshold字节才压缩
+    static final String COMPRESSION = System.getProperty("compression", "snappy,zlib");
+    static final int COMPRESS_THRESHOLD = Integer.getInteger("compressThreshold", 1024);
+
+    //-DcopyFreeDecoder=true 时解码器不拷贝半包（大帧分成很多段到达时有用）
+    static final boolean COPY_FREE_DECODER = Boolean.getBoolean("copyFreeDecoder");
+    //-DstatsInterval=N 时每N秒打印一次解码器拷贝/切片的字节数
+    static final int STATS_INTERVAL = Integer.getInteger("statsInterval", 0);
+
+    //-DbusinessThreads=N 时业务处理放到N个条带的StripedExecutor上，每个条带的队列长度是businessQueue；
+    //-DorderBy=type 时按消息type保证顺序，默认按连接
+    static final int BUSINESS_THREADS = Integer.getInteger("businessThreads", 0);
+    static final int BUSINESS_QUEUE = Integer.getInteger("businessQueue", 1024);
+    static final boolean ORDER_BY_TYPE = "type".equals(System.getProperty("orderBy", "channel"));
+
     private int port;
 
     private CustomerServer(int port) {
@@ -26,13 +47,25 @@ public class CustomerServer {
     }
 
     public void start() {
-        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup boss = Transports.newEventLoopGroup(1);
         //cpu数量*2
-        EventLoopGroup work = new NioEventLoopGroup();
+        EventLoopGroup work = Transports.newEventLoopGroup();
+        final StripedExecutor business = BUSINESS_THREADS > 0
+                ? new StripedExecutor("business", BUSINESS_THREADS, BUSINESS_QUEUE) : null;
+        if (STATS_INTERVAL > 0) {
+            boss.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println("decoder: copied=" + CustomDecoder.bytesCopied() / 1024 + "KB sliced="
+                            + CustomDecoder.bytesSliced() / 1024 + "KB"
+                            + (business == null ? "" : " business: queued=" + business.queued() + " pauses=" + business.pauses()));
+                }
+            }, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+        }
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap()
                     .group(boss, work)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(Transports.serverChannelClass())
                     .handler(new LoggingHandler())
                     .localAddress(new InetSocketAddress(port))
                     //给客户端用
@@ -40,8 +73,11 @@ public class CustomerServer {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
                             ch.pipeline()
-                                    .addLast(new CustomDecoder(1024,(byte)1,(byte)4,(byte)1,(byte)6,(byte)1))
-                                    .addLast(new CustomServerHandler());
+                                    .addLast(CustomDecoder.frames(MAX_FRAME_LENGTH, COPY_FREE_DECODER))//输出去掉头部的ByteBuf可以用new CustomDecoder(1024,(byte)1,(byte)4,(byte)9,(byte)14,(byte)1)
+                                    //根据第一帧（握手或者老客户端的普通帧）装上批量、压缩、编码的handler
+                                    .addLast(new ServerHandshakeHandler(MAX_FRAME_LENGTH,
+                                            CustomCompressionHandler.parse(COMPRESSION), COMPRESS_THRESHOLD))
+                                    .addLast(new CustomServerHandler(business, ORDER_BY_TYPE));
                         }
                     }).option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
@@ -54,6 +90,9 @@ public class CustomerServer {
         } finally {
             boss.shutdownGracefully();
             work.shutdownGracefully();
+            if (business != null) {
+                business.shutdown();
+            }
         }
 
     }
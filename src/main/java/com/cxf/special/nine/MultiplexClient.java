@@ -0,0 +1,201 @@
+package com.cxf.special.nine;
+
+import com.cxf.special.bin.Capabilities;
+import com.cxf.special.bin.CustomFrame;
+import com.cxf.special.bin.CustomMsg;
+import com.cxf.special.handler.ClientHandshakeHandler;
+import com.cxf.special.handler.CustomCompressionHandler;
+import com.cxf.special.handler.CustomDecoder;
+import com.cxf.special.handler.MultiplexClientHandler;
+import com.cxf.transport.Transports;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by cxf on 2019/1/13.
+ */
+
+/**
+ * CustomerServer的多路复用客户端：一个连接上可以同时有任意多个请求在途，每个请求返回一个Future，
+ * 响应按requestId对应回来，不要求服务端按顺序响应，不再需要为了并发开很多连接。
+ *
+ * 配合服务端的 -DmaxReplyDelayMillis 可以看到响应乱序返回。
+ *
+ * 连接建立后先和服务端握手，交换协议版本、帧长度上限、支持的压缩算法和批量特性：
+ * -Dcompression=snappy,zlib（默认）支持的压缩算法，body达到-DcompressThreshold字节的请求按协商结果压缩；
+ * -DbatchBytes=N 支持批量帧，协商成功后开启自动攒批：请求攒够N字节或者flush后过了-DbatchLingerMicros（默认200）微秒，打成一个批量帧发出去。
+ * -DhandshakeTimeoutMillis（默认1000）内没有收到服务端的握手回复时连接失败并关闭。
+ */
+public class MultiplexClient {
+
+    static final String HOST = System.getProperty("host", "127.0.0.1");
+    static final int PORT = Integer.parseInt(System.getProperty("port", "8080"));
+    static final int REQUESTS = Integer.parseInt(System.getProperty("requests", "100"));
+    static final long TIMEOUT_MILLIS = Long.getLong("requestTimeoutMillis", 3000);
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("maxFrameLength", 1024);
+    static final String COMPRESSION = System.getProperty("compression", "snappy,zlib");
+    static final int COMPRESS_THRESHOLD = Integer.getInteger("compressThreshold", 1024);
+    static final boolean COPY_FREE_DECODER = Boolean.getBoolean("copyFreeDecoder");
+    static final int BATCH_BYTES = Integer.getInteger("batchBytes", 0);
+    static final long BATCH_LINGER_MICROS = Long.getLong("batchLingerMicros", 200);
+    static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("handshakeTimeoutMillis", 1000);
+
+    private final Bootstrap bootstrap;
+    private volatile Channel channel;
+    private volatile MultiplexClientHandler handler;
+
+    public MultiplexClient(EventLoopGroup group) {
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(Transports.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast(CustomDecoder.frames(MAX_FRAME_LENGTH, COPY_FREE_DECODER))
+                                //握手完成后在这里装上攒批、压缩、编码的handler
+                                .addLast(new ClientHandshakeHandler(MAX_FRAME_LENGTH, CustomCompressionHandler.parse(COMPRESSION),
+                                        COMPRESS_THRESHOLD, BATCH_BYTES, BATCH_LINGER_MICROS, HANDSHAKE_TIMEOUT_MILLIS))
+                                .addLast(new MultiplexClientHandler(TIMEOUT_MILLIS));
+                    }
+                });
+    }
+
+    /**
+     * 连接并等握手完成
+     */
+    public void connect(String host, int port) throws InterruptedException {
+        connectAsync(host, port).sync();
+    }
+
+    /**
+     * 不阻塞的连接，返回的Future在握手完成后成功，之后才能request()
+     */
+    public Future<Capabilities> connectAsync(String host, int port) {
+        final Promise<Capabilities> connected = bootstrap.config().group().next().newPromise();
+        bootstrap.connect(host, port).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    connected.tryFailure(future.cause());
+                    return;
+                }
+                final Channel ch = future.channel();
+                ch.attr(ClientHandshakeHandler.HANDSHAKE).get().addListener(new FutureListener<Capabilities>() {
+                    @Override
+                    public void operationComplete(Future<Capabilities> handshake) throws Exception {
+                        if (handshake.isSuccess()) {
+                            System.out.println("negotiated " + handshake.getNow());
+                            handler = ch.pipeline().get(MultiplexClientHandler.class);
+                            channel = ch;
+                            connected.trySuccess(handshake.getNow());
+                        } else {
+                            ch.close();
+                            connected.tryFailure(handshake.cause());
+                        }
+                    }
+                });
+            }
+        });
+        return connected;
+    }
+
+    public boolean isActive() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    /**
+     * 这个连接上还没有收到响应的请求数
+     */
+    public int pending() {
+        MultiplexClientHandler h = handler;
+        return h == null ? 0 : h.pending();
+    }
+
+    /**
+     * 发一个心跳请求，服务端在I/O线程上直接回，超时或者连接断开时失败
+     */
+    public Future<CustomMsg> heartbeat() {
+        return call(new MultiplexClientHandler.Call("", CustomFrame.FLAG_HEARTBEAT,
+                channel.eventLoop().<CustomMsg>newPromise()));
+    }
+
+    /**
+     * 可以在任意线程调用，超时、连接断开、写失败都会让返回的Future失败
+     */
+    public Future<CustomMsg> request(String body) {
+        return call(new MultiplexClientHandler.Call(body, channel.eventLoop().<CustomMsg>newPromise()));
+    }
+
+    private Future<CustomMsg> call(MultiplexClientHandler.Call call) {
+        Channel ch = channel;
+        ch.writeAndFlush(call, ch.voidPromise());
+        return call.promise();
+    }
+
+    /**
+     * 关闭连接并等它关完，不能在EventLoop上调用
+     */
+    public void close() {
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close().syncUninterruptibly();
+        }
+    }
+
+    /**
+     * 只发起关闭，不等待，可以在EventLoop上调用
+     */
+    public void closeAsync() {
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        EventLoopGroup group = Transports.newEventLoopGroup(1);
+        try {
+            MultiplexClient client = new MultiplexClient(group);
+            client.connect(HOST, PORT);
+            final CountDownLatch done = new CountDownLatch(REQUESTS);
+            final AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            //所有请求一次性发出去，都在同一个连接上
+            for (int i = 0; i < REQUESTS; i++) {
+                client.request("request-" + i).addListener(new FutureListener<CustomMsg>() {
+                    @Override
+                    public void operationComplete(Future<CustomMsg> future) throws Exception {
+                        if (future.isSuccess()) {
+                            System.out.println("response " + future.getNow().getRequestId() + ": " + future.getNow().getBody());
+                        } else {
+                            failed.incrementAndGet();
+                            System.out.println("failed: " + future.cause());
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            System.out.println(REQUESTS + " requests on one connection, " + failed.get() + " failed, "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            client.close();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+}
@@ -2,14 +2,13 @@ package com.cxf.special.six;
 
 import com.cxf.special.handler.BaseClientHandler;
 import com.cxf.special.six.handler.BaseServerHandler;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LoggingHandler;
@@ -25,13 +24,13 @@ public class BagSever {
     }
 
     public void start() {
-        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup boss = Transports.newEventLoopGroup(1);
         //cpu数量*2
-        EventLoopGroup work = new NioEventLoopGroup();
+        EventLoopGroup work = Transports.newEventLoopGroup();
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap()
                     .group(boss, work)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(Transports.serverChannelClass())
                     .handler(new LoggingHandler())
                     .localAddress(new InetSocketAddress(port))
                     //给客户端用
@@ -1,15 +1,14 @@
 package com.cxf.special.six;
 
 import com.cxf.special.six.handler.BaseServerHandler;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.FixedLengthFrameDecoder;
 import io.netty.handler.codec.LineBasedFrameDecoder;
@@ -28,13 +27,13 @@ public class LineBaseDecoderServer {
     }
 
     public void start() {
-        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup boss = Transports.newEventLoopGroup(1);
         //cpu数量*2
-        EventLoopGroup work = new NioEventLoopGroup();
+        EventLoopGroup work = Transports.newEventLoopGroup();
         try {
             ServerBootstrap serverBootstrap = new ServerBootstrap()
                     .group(boss, work)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(Transports.serverChannelClass())
                     .handler(new LoggingHandler())
                     .localAddress(new InetSocketAddress(port))
                     //给客户端用
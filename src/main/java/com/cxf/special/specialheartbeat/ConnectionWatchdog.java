@@ -6,28 +6,54 @@ import io.netty.util.Timeout;
 import io.netty.util.Timer;
 import io.netty.util.TimerTask;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by cxf on 2019/1/2.
  */
+
+/**
+ * 断线重连，handlers()返回的handler里要包含这个watchdog自己，每次重连出来的新连接断开时才会再触发重连。
+ *
+ *   间隔 ---> ReconnectPolicy的full jitter指数退避，有上限，不限次数，一直重试到stop()
+ *   限流 ---> 每次重连先从ReconnectLimiter.GLOBAL拿许可，拿不到就等一会再试（不算一次失败），
+ *            服务端重启时整个进程的重连速度和并发数都有上限
+ *   引导 ---> 构造时从传进来的bootstrap克隆一个，设好目标地址和handler之后不再修改，重连时直接connect()，
+ *            不用再锁着bootstrap改handler
+ */
+@ChannelHandler.Sharable
 public class ConnectionWatchdog  extends ChannelInboundHandlerAdapter implements TimerTask,ChannelHandlerHolder{
 
         private final Bootstrap bootstrap;
         private final Timer timer;
-        private final int port;
-        private final String host;
+        private final ReconnectPolicy policy;
+        private final ReconnectLimiter limiter;
 
         private volatile boolean reconnect = true;
-        private int attempts;
+        //连续失败的次数，连接建立后清零；timer线程和EventLoop都会改
+        private final AtomicInteger attempts = new AtomicInteger();
 
 
         public ConnectionWatchdog(Bootstrap bootstrap, Timer timer, int port,String host, boolean reconnect) {
-            this.bootstrap = bootstrap;
+            this(bootstrap, timer, port, host, reconnect, ReconnectPolicy.DEFAULT, ReconnectLimiter.GLOBAL);
+        }
+
+        public ConnectionWatchdog(Bootstrap bootstrap, Timer timer, int port, String host, boolean reconnect,
+                                  ReconnectPolicy policy, ReconnectLimiter limiter) {
+            this.bootstrap = bootstrap.clone()
+                    .remoteAddress(host, port)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) throws Exception {
+                            ch.pipeline().addLast(handlers());
+                        }
+                    });
             this.timer = timer;
-            this.port = port;
-            this.host = host;
             this.reconnect = reconnect;
+            this.policy = policy;
+            this.limiter = limiter;
         }
 
         /**
@@ -36,52 +62,55 @@ public class ConnectionWatchdog  extends ChannelInboundHandlerAdapter implements
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
             System.out.println("当前链路已经激活了，重连尝试次数重新置为0");
-            attempts = 0;
+            attempts.set(0);
             ctx.fireChannelActive();
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             System.out.println("链接关闭");
-            if(reconnect){
-                System.out.println("链接关闭，将进行重连");
-                if (attempts < 12) {
-                    attempts++;
-                    //重连的间隔时间会越来越长
-                    int timeout = 2 << attempts;
-                    timer.newTimeout(this, timeout, TimeUnit.MILLISECONDS);
-                }
-            }
+            scheduleReconnect();
             ctx.fireChannelInactive();
         }
 
+        /**
+         * 不再重连，已经安排的那一次到时间也不会连
+         */
+        public void stop() {
+            reconnect = false;
+        }
 
-    public void run(Timeout timeout) throws Exception {
-
-        ChannelFuture future;
-        //bootstrap已经初始化好了，只需要将handler填入就可以了
-        //为什么这里需要同步？？
-        synchronized (bootstrap) {
-            bootstrap.handler(new ChannelInitializer<Channel>() {
+        private void scheduleReconnect() {
+            if (!reconnect) {
+                return;
+            }
+            //重连的间隔时间会越来越长，但每次都是在区间里随机取
+            long delay = policy.delayMillis(attempts.getAndIncrement());
+            System.out.println("链接关闭，" + delay + "ms后进行第" + attempts.get() + "次重连");
+            timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+        }
 
-                @Override
-                protected void initChannel(Channel ch) throws Exception {
 
-                    ch.pipeline().addLast(handlers());
-                }
-            });
-            future = bootstrap.connect(host,port);
+    public void run(Timeout timeout) throws Exception {
+        if (!reconnect) {
+            return;
         }
-        //future对象
+        if (!limiter.tryAcquire()) {
+            //整个进程的重连太多了，等一个令牌的时间再加一点随机，避免拿不到许可的一起再来
+            long wait = limiter.nanosUntilPermit();
+            timer.newTimeout(this, wait + ThreadLocalRandom.current().nextLong(wait + 1), TimeUnit.NANOSECONDS);
+            return;
+        }
+        //bootstrap构造时就配好了，不会再改，不需要同步
+        ChannelFuture future = bootstrap.connect();
         future.addListener(new ChannelFutureListener() {
 
             public void operationComplete(ChannelFuture f) throws Exception {
-                boolean succeed = f.isSuccess();
-
-                //如果重连失败，则调用ChannelInactive方法，再次出发重连事件，一直尝试12次，如果失败则不再重连
-                if (!succeed) {
-                    System.out.println("重连失败");
-                    f.channel().pipeline().fireChannelInactive();
+                limiter.release();
+                //连接成功后新连接的channelActive会把次数清零，断开时由它的channelInactive再次触发重连
+                if (!f.isSuccess()) {
+                    System.out.println("重连失败: " + f.cause());
+                    scheduleReconnect();
                 }else{
                     System.out.println("重连成功");
                 }
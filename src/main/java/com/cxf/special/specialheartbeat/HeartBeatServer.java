@@ -1,19 +1,19 @@
 package com.cxf.special.specialheartbeat;
 
 import com.cxf.special.handler.HeartBeatServerHandler;
+import com.cxf.special.handler.HeartbeatFrameHandler;
+import com.cxf.special.handler.IdleDetector;
+import com.cxf.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.IdleStateHandler;
 
 import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
@@ -22,7 +22,14 @@ import java.util.concurrent.TimeUnit;
  * Created by cxf on 2019/1/2.
  */
 public class HeartBeatServer{
+    //-DidleClose=true 时空闲连接由IdleDetector直接关掉，不用再经过AcceptorIdleStateTrigger抛异常
+    private static final boolean IDLE_CLOSE = Boolean.getBoolean("idleClose");
+
     private final AcceptorIdleStateTrigger idleStateTrigger = new AcceptorIdleStateTrigger();
+    //所有连接共用，每个EventLoop一个时间轮，代替每个连接一个IdleStateHandler
+    private final IdleDetector idleDetector = new IdleDetector(5, TimeUnit.SECONDS, IDLE_CLOSE);
+    //一字节的ping/pong，在字符串编解码之前处理掉
+    private final HeartbeatFrameHandler heartbeatFrameHandler = new HeartbeatFrameHandler();
 
         private int port;
 
@@ -31,15 +38,18 @@ public class HeartBeatServer{
         }
 
         public void start() {
-            EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-            EventLoopGroup workerGroup = new NioEventLoopGroup();
+            EventLoopGroup bossGroup = Transports.newEventLoopGroup(1);
+            EventLoopGroup workerGroup = Transports.newEventLoopGroup();
             try {
                 ServerBootstrap sbs = new ServerBootstrap().group(bossGroup, workerGroup)
-                        .channel(NioServerSocketChannel.class).handler(new LoggingHandler(LogLevel.INFO))
+                        .channel(Transports.serverChannelClass()).handler(new LoggingHandler(LogLevel.INFO))
                         .localAddress(new InetSocketAddress(port)).childHandler(new ChannelInitializer<SocketChannel>() {
                             protected void initChannel(SocketChannel ch) throws Exception {
-                                ch.pipeline().addLast(new IdleStateHandler(5, 0, 0, TimeUnit.SECONDS));
-                                ch.pipeline().addLast(idleStateTrigger);
+                                ch.pipeline().addLast(idleDetector.newHandler());
+                                ch.pipeline().addLast(heartbeatFrameHandler);
+                                if (!IDLE_CLOSE) {
+                                    ch.pipeline().addLast(idleStateTrigger);
+                                }
                                 ch.pipeline().addLast("decoder", new StringDecoder());
                                 ch.pipeline().addLast("encoder", new StringEncoder());
                                 ch.pipeline().addLast(new HeartBeatServerHandler());
@@ -0,0 +1,80 @@
+package com.cxf.special.specialheartbeat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by cxf on 2019/1/22.
+ */
+
+/**
+ * 整个进程共用的重连限流：令牌桶限制每秒发起的重连数（允许burst个突发），同时在途（还没有结果）的重连不超过maxConcurrent个。
+ * 拿不到许可的重连不算失败，过nanosUntilPermit()再试。
+ *
+ * 重连不是热路径，直接用synchronized。
+ */
+public final class ReconnectLimiter {
+
+    public static final ReconnectLimiter GLOBAL = new ReconnectLimiter(
+            Integer.getInteger("reconnectRate", 50),
+            Integer.getInteger("reconnectBurst", 100),
+            Integer.getInteger("reconnectConcurrency", 32));
+
+    private final double permitsPerNano;
+    private final int burst;
+    private final int maxConcurrent;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private int inFlight;
+
+    public ReconnectLimiter(int permitsPerSecond, int burst, int maxConcurrent) {
+        if (permitsPerSecond <= 0 || burst <= 0 || maxConcurrent <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond: " + permitsPerSecond + ", burst: " + burst
+                    + ", maxConcurrent: " + maxConcurrent + " (expected: all > 0)");
+        }
+        this.permitsPerNano = permitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.maxConcurrent = maxConcurrent;
+        this.tokens = burst;
+    }
+
+    /**
+     * 拿到许可返回true，重连有结果（成功或失败）之后要调用release()
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1 || inFlight >= maxConcurrent) {
+            return false;
+        }
+        tokens -= 1;
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+    }
+
+    /**
+     * 大概还要等多久才有令牌；令牌够但是在途的重连满了的时候返回一个令牌的时间
+     */
+    public synchronized long nanosUntilPermit() {
+        refill();
+        if (tokens >= 1) {
+            return (long) (1 / permitsPerNano);
+        }
+        return (long) ((1 - tokens) / permitsPerNano);
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,41 @@
+package com.cxf.special.specialheartbeat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Created by cxf on 2019/1/22.
+ */
+
+/**
+ * 重连的等待时间：full jitter指数退避，第n次重连等待[0, min(cap, base * 2^n))之间的随机时间。
+ *
+ * 不加随机时，服务端重启后所有客户端在同一时刻发现断线，按同样的间隔序列重连，每一轮都是同时打过来；
+ * 在整个区间里随机取，同一轮的重连就被均匀摊开了。重试次数不设上限，间隔到cap之后就一直按cap重试。
+ */
+public final class ReconnectPolicy {
+
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(
+            Long.getLong("reconnectBaseMillis", 100), Long.getLong("reconnectMaxMillis", 30000));
+
+    private final long baseMillis;
+    private final long capMillis;
+
+    public ReconnectPolicy(long baseMillis, long capMillis) {
+        if (baseMillis <= 0 || capMillis < baseMillis) {
+            throw new IllegalArgumentException("baseMillis: " + baseMillis + ", capMillis: " + capMillis
+                    + " (expected: 0 < baseMillis <= capMillis)");
+        }
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+    }
+
+    /**
+     * @param attempt 已经连续失败的次数，从0开始
+     */
+    public long delayMillis(int attempt) {
+        //左移到符号位就溢出了，那时候早就到cap了
+        long ceiling = attempt >= Long.numberOfLeadingZeros(baseMillis) - 1
+                ? capMillis : Math.min(capMillis, baseMillis << attempt);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
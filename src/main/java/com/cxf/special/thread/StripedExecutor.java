@@ -0,0 +1,274 @@
+package com.cxf.special.thread;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by cxf on 2019/1/17.
+ */
+
+/**
+ * 按key分条带的业务线程池：每个条带一个线程、一个有界队列，同一个key的任务总是进同一个条带，按提交顺序串行执行；
+ * 不同key的任务分散在各个条带上并行执行。业务逻辑从I/O线程挪到这里，慢的或者阻塞的处理不会拖住同一个EventLoop上的其他连接。
+ *
+ * 背压：提交后条带的队列长度达到高水位（容量的一半）时，把提交任务的Channel的autoRead关掉，
+ * 这个连接不再读新数据；条带把队列消化到低水位（容量的1/4）以下时再打开。
+ * 一个条带被很多连接共用（按type分条带时被所有连接共用），关掉autoRead之前已经解码出来的消息还会继续提交，
+ * 队列满了的时候提交不会阻塞I/O线程，也不会拒绝：任务放进这个连接自己的溢出队列，连接保持暂停，
+ * 条带消化到低水位时在连接的EventLoop上先把溢出队列按顺序放回条带，放完了才打开autoRead。
+ * 连接有溢出任务时，后面提交的任务也进溢出队列，同一个key的顺序不会乱。
+ *
+ * execute()只能在channel的EventLoop上调用，溢出队列只在这个线程上访问。
+ * 任务实现了Discardable时，shutdown()丢掉还没执行的任务会调用它的discard()，用来释放任务持有的ByteBuf之类的资源。
+ */
+public class StripedExecutor {
+
+    /**
+     * 任务没有执行就被丢掉时的回调
+     */
+    public interface Discardable {
+        void discard();
+    }
+
+    private static final AttributeKey<Backlog> BACKLOG = AttributeKey.valueOf(StripedExecutor.class, "backlog");
+
+    private final Stripe[] stripes;
+    private final int highWater;
+    private final int lowWater;
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile boolean shutdown;
+
+    public StripedExecutor(String name, int stripes, int capacity) {
+        if (stripes <= 0 || capacity < 4) {
+            throw new IllegalArgumentException("stripes: " + stripes + ", capacity: " + capacity);
+        }
+        this.highWater = capacity / 2;
+        this.lowWater = capacity / 4;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(name + "-" + i, capacity);
+        }
+    }
+
+    /**
+     * 不会阻塞；只有shutdown()之后才会抛RejectedExecutionException，这时任务没有被接收，由调用方释放它持有的资源
+     *
+     * @param key     决定任务进哪个条带，同一个key的任务按提交顺序执行
+     * @param channel 提交任务的连接，队列积压时关掉它的autoRead
+     */
+    public void execute(Object key, Runnable task, Channel channel) {
+        if (shutdown) {
+            throw new RejectedExecutionException("executor has been shut down");
+        }
+        Stripe stripe = stripes[(spread(key.hashCode()) & Integer.MAX_VALUE) % stripes.length];
+        Backlog backlog = channel.attr(BACKLOG).get();
+        if (backlog != null && !backlog.tasks.isEmpty()) {
+            //前面还有溢出的任务，排在它们后面
+            backlog.tasks.add(new Overflow(stripe, task));
+            return;
+        }
+        if (!stripe.queue.offer(task)) {
+            if (backlog == null) {
+                backlog = new Backlog();
+                channel.attr(BACKLOG).set(backlog);
+            }
+            overflows.incrementAndGet();
+            backlog.tasks.add(new Overflow(stripe, task));
+            pause(channel, backlog, stripe);
+            return;
+        }
+        if (shutdown && stripe.queue.remove(task)) {
+            //和shutdown()并发时，shutdown可能已经清过队列了
+            throw new RejectedExecutionException("executor has been shut down");
+        }
+        if (stripe.queue.size() >= highWater) {
+            if (backlog == null) {
+                backlog = new Backlog();
+                channel.attr(BACKLOG).set(backlog);
+            }
+            pause(channel, backlog, stripe);
+        }
+    }
+
+    /**
+     * 因为队列积压关掉autoRead的次数
+     */
+    public long pauses() {
+        return pauses.get();
+    }
+
+    /**
+     * 因为条带的队列满了放进连接溢出队列的次数
+     */
+    public long overflows() {
+        return overflows.get();
+    }
+
+    public int queued() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.queue.size();
+        }
+        return total;
+    }
+
+    /**
+     * 停掉条带线程，队列里和各个连接溢出队列里还没执行的任务都丢掉（调用Discardable.discard()）
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Stripe stripe : stripes) {
+            stripe.thread.interrupt();
+        }
+        for (Stripe stripe : stripes) {
+            Runnable task;
+            while ((task = stripe.queue.poll()) != null) {
+                discard(task);
+            }
+            //有溢出任务的连接一定在某个条带的paused里，在它的EventLoop上清掉
+            Channel channel;
+            while ((channel = stripe.paused.poll()) != null) {
+                scheduleDrain(channel);
+            }
+        }
+    }
+
+    private void pause(Channel channel, Backlog backlog, Stripe stripe) {
+        if (!backlog.paused) {
+            backlog.paused = true;
+            channel.config().setAutoRead(false);
+            pauses.incrementAndGet();
+        }
+        stripe.paused.add(channel);
+        //条带可能在add之前已经检查过paused并且消化完了，这里再看一次，避免连接一直停着
+        if (stripe.queue.size() <= lowWater) {
+            stripe.resumePaused();
+        }
+    }
+
+    private void scheduleDrain(final Channel channel) {
+        try {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(channel);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //EventLoop已经关了，没有别的线程会再碰这个溢出队列，直接在这里处理
+            drain(channel);
+        }
+    }
+
+    /**
+     * 在channel的EventLoop上：溢出的任务按顺序放回条带，全部放回去之后才恢复读
+     */
+    private void drain(Channel channel) {
+        Backlog backlog = channel.attr(BACKLOG).get();
+        if (backlog == null) {
+            return;
+        }
+        Overflow next;
+        while ((next = backlog.tasks.peek()) != null) {
+            if (shutdown) {
+                backlog.tasks.poll();
+                discard(next.task);
+                continue;
+            }
+            if (!next.stripe.queue.offer(next.task)) {
+                //又满了，继续等这个条带
+                next.stripe.paused.add(channel);
+                if (next.stripe.queue.size() <= lowWater) {
+                    next.stripe.resumePaused();
+                }
+                return;
+            }
+            backlog.tasks.poll();
+        }
+        if (backlog.paused && !shutdown) {
+            backlog.paused = false;
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    private static void discard(Runnable task) {
+        if (task instanceof Discardable) {
+            try {
+                ((Discardable) task).discard();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static int spread(int h) {
+        //hashCode的低位可能分布不好，和HashMap一样把高位混进来
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 一个连接的溢出队列，只在连接的EventLoop上访问
+     */
+    private static final class Backlog {
+        final ArrayDeque<Overflow> tasks = new ArrayDeque<Overflow>();
+        boolean paused;
+    }
+
+    private static final class Overflow {
+        final Stripe stripe;
+        final Runnable task;
+
+        Overflow(Stripe stripe, Runnable task) {
+            this.stripe = stripe;
+            this.task = task;
+        }
+    }
+
+    private final class Stripe implements Runnable {
+        final LinkedBlockingQueue<Runnable> queue;
+        final ConcurrentLinkedQueue<Channel> paused = new ConcurrentLinkedQueue<Channel>();
+        final Thread thread;
+
+        Stripe(String name, int capacity) {
+            queue = new LinkedBlockingQueue<Runnable>(capacity);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+                if (!paused.isEmpty() && queue.size() <= lowWater) {
+                    resumePaused();
+                }
+            }
+        }
+
+        void resumePaused() {
+            Channel channel;
+            while ((channel = paused.poll()) != null) {
+                //溢出队列只在连接的EventLoop上访问，放回条带和打开autoRead都交给它
+                scheduleDrain(channel);
+            }
+        }
+    }
+}
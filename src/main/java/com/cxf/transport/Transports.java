@@ -0,0 +1,67 @@
+package com.cxf.transport;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Created by cxf on 2019/1/8.
+ */
+
+/**
+ * 统一的传输选择：
+ *   Linux 上如果 netty-all 自带的 libnetty-transport-native-epoll.so 能加载成功，就用原生 epoll 传输
+ *   (EpollEventLoopGroup + EpollServerSocketChannel)，否则回退到 NIO。
+ *
+ *   NIO 的 Selector 每次 wakeup 都要走一次 pipe/eventfd 写，并且 selectedKeys 集合会不断产生垃圾；
+ *   epoll 传输是边缘触发的，直接用 epoll_wait 返回的数组，连接数很多的时候这两块开销都会小很多。
+ *
+ *   可以用 -Dtransport=nio 强制使用 NIO（比如对比测试时）。
+ */
+public final class Transports {
+
+    private static final boolean EPOLL = !"nio".equalsIgnoreCase(System.getProperty("transport", "auto"))
+            && Epoll.isAvailable();
+
+    static {
+        if (EPOLL) {
+            System.out.println("transport: native epoll");
+        } else {
+            System.out.println("transport: nio"
+                    + (Epoll.unavailabilityCause() != null ? " (epoll unavailable: " + Epoll.unavailabilityCause() + ")" : ""));
+        }
+    }
+
+    private Transports() {
+    }
+
+    public static boolean isEpoll() {
+        return EPOLL;
+    }
+
+    /**
+     * 线程数为0时和NioEventLoopGroup一样，默认cpu数量*2
+     */
+    public static EventLoopGroup newEventLoopGroup(int nThreads) {
+        return EPOLL ? new EpollEventLoopGroup(nThreads) : new NioEventLoopGroup(nThreads);
+    }
+
+    public static EventLoopGroup newEventLoopGroup() {
+        return newEventLoopGroup(0);
+    }
+
+    public static Class<? extends ServerSocketChannel> serverChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> socketChannelClass() {
+        return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+}